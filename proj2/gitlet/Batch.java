@@ -0,0 +1,155 @@
+package gitlet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** gitlet batch [FILE]: runs the commands in FILE, or on standard input,
+ *  one per line, in this process. Arguments are separated by spaces and
+ *  may be quoted with ' or ", as in a shell; blank lines and lines
+ *  starting with # are skipped.
+ *
+ *  During a batch, the files that hold the repository's state (branches,
+ *  HEAD, the staging area, the stat cache and the commit graph) are kept in
+ *  memory and written only at a checkpoint, the end of the batch or a line
+ *  holding just "checkpoint", as one Journal transaction. Objects and
+ *  working files are still written as each command runs, as are commits;
+ *  the message index is written in that same transaction.
+ *
+ *  Each command prints exactly what it prints on its own. A command that
+ *  fails with an error for the user, which happens before it changes
+ *  anything, is also reported on stderr with its line number, and the batch
+ *  goes on. Any other failure stops the batch without writing anything
+ *  since the last checkpoint.
+ *
+ *  @author Jae Won Kim
+ */
+class Batch {
+
+    /** The write of each file deferred to the next checkpoint, in the order
+     *  they were first deferred, or null outside a batch. */
+    private static Map<File, Runnable> pending;
+
+    /** Runs WRITE, which writes FILE, now, or, during a batch, at the next
+     *  checkpoint, replacing any write of FILE already waiting. */
+    static void write(File file, Runnable write) {
+        if (pending == null) {
+            write.run();
+        } else {
+            pending.put(file, write);
+        }
+    }
+
+    /** Runs the commands in the file NAME, or on standard input if NAME is
+     *  null. */
+    static void run(String name) throws IOException {
+        Path script = name == null ? null : Repository.CWD.toPath().resolve(name);
+        if (script != null && !Files.isRegularFile(script)) {
+            throw error("File does not exist.");
+        }
+        Reader input = script == null
+                ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                : Files.newBufferedReader(script);
+        pending = new LinkedHashMap<>();
+        try (BufferedReader lines = new BufferedReader(input)) {
+            int number = 0;
+            for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                number++;
+                try {
+                    String[] args = split(line);
+                    if (args.length == 0 || args[0].startsWith("#")) {
+                        continue;
+                    } else if (args[0].equals("checkpoint") && args.length == 1) {
+                        checkpoint();
+                    } else if (args[0].equals("batch") || args[0].equals("serve")) {
+                        throw error("Cannot run %s in a batch.", args[0]);
+                    } else {
+                        Main.dispatch(args);
+                    }
+                } catch (GitletException e) {
+                    System.out.println(e.getMessage());
+                    System.err.printf("line %d: %s%n", number, e.getMessage());
+                } catch (RuntimeException e) {
+                    System.err.printf("line %d: stopping the batch.%n", number);
+                    throw e;
+                }
+            }
+            checkpoint();
+        } finally {
+            pending = null;
+        }
+    }
+
+    /** Makes everything done so far durable: during a batch, as at a
+     *  checkpoint, and otherwise by committing the Journal. */
+    static void commit() {
+        if (pending == null) {
+            Journal.commit();
+        } else {
+            checkpoint();
+        }
+    }
+
+    /** Performs every deferred write and commits them to the Journal as
+     *  one transaction. */
+    private static void checkpoint() {
+        for (Runnable write : pending.values()) {
+            write.run();
+        }
+        pending.clear();
+        Journal.commit();
+    }
+
+    /** Returns the arguments on LINE. */
+    private static String[] split(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = null;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else if (c == '\\' && quote == '"' && i + 1 < line.length()) {
+                    arg.append(line.charAt(++i));
+                } else {
+                    arg.append(c);
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (arg != null) {
+                    args.add(arg.toString());
+                    arg = null;
+                }
+            } else {
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+                if (c == '\'' || c == '"') {
+                    quote = c;
+                } else if (c == '\\' && i + 1 < line.length()) {
+                    arg.append(line.charAt(++i));
+                } else {
+                    arg.append(c);
+                }
+            }
+        }
+        if (quote != 0) {
+            throw error("Unterminated quote.");
+        }
+        if (arg != null) {
+            args.add(arg.toString());
+        }
+        return args.toArray(new String[0]);
+    }
+}
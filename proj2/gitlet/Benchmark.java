@@ -0,0 +1,194 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.Random;
+
+/** A benchmarking class whose main program may be invoked as follows:
+ *      java gitlet.Benchmark compression [FILES [KB]]
+ *      java gitlet.Benchmark global-log [COMMITS]
+ *  It builds a throwaway repository in a temporary directory, never the
+ *  current one, so it is safe to run anywhere.
+ *
+ *  compression: for each deflate level, commits FILES generated source-like
+ *  files of about KB kilobytes each, then checks them all out again from an
+ *  empty branch. It prints the bytes stored and, for the adds, which
+ *  compress every blob, the commit and the checkout, wall-clock time next
+ *  to the CPU time of the thread; their difference is roughly the time
+ *  spent waiting on I/O. Numbers are with a warm page cache, so on a slow
+ *  disk the higher levels look better than here.
+ *
+ *  global-log: makes a history of COMMITS commits, then prints global-log
+ *  into a discarding stream with 1, 2, 4, ... workers up to the number of
+ *  processors, and reports commits per second for each.
+ *  @author Jae Won Kim
+ */
+public class Benchmark {
+
+    /** Deflate levels that are compared. */
+    private static final int[] LEVELS = {0, 1, 3, 6, 9};
+
+    /** Run the benchmark named by ARGS[0]. */
+    public static void main(String... args) throws IOException {
+        if (args.length == 0
+                || !args[0].equals("compression") && !args[0].equals("global-log")) {
+            System.out.println("Usage: java gitlet.Benchmark compression [FILES [KB]]");
+            System.out.println("       java gitlet.Benchmark global-log [COMMITS]");
+            return;
+        }
+        File dir = Files.createTempDirectory("gitlet-bench").toFile();
+        System.setProperty("user.dir", dir.getPath());
+        try {
+            if (args[0].equals("compression")) {
+                compression(args.length > 1 ? Integer.parseInt(args[1]) : 2000,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 8);
+            } else {
+                globalLog(args.length > 1 ? Integer.parseInt(args[1]) : 5000);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /** Run the compression benchmark over FILES files of about KB kilobytes. */
+    private static void compression(int files, int kb) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        System.out.printf("%d files of %d KB%n", files, kb);
+        System.out.printf("%5s %12s %6s %11s %11s %11s %11s %11s %11s%n", "level", "stored",
+                "ratio", "add ms", "add cpu", "commit ms", "commit cpu", "checkout ms",
+                "checkout cpu");
+        for (int level : LEVELS) {
+            for (File file : Repository.CWD.listFiles()) {
+                delete(file);
+            }
+            reset();
+            Repository.initCommand();
+            Config.set(ObjectStore.LEVEL_KEY, Integer.toString(level));
+            Repository.branch("empty");
+            Journal.commit();
+
+            Random random = new Random(61);
+            long rawBytes = 0;
+            long addWall = 0;
+            long addCpu = 0;
+            for (int i = 0; i < files; i++) {
+                String name = "f" + i + ".java";
+                String text = sourceText(random, kb * 1024);
+                Utils.writeContents(Utils.join(Repository.CWD, name), text);
+                rawBytes += text.length();
+                long wall = System.nanoTime();
+                long cpu = bean.getCurrentThreadCpuTime();
+                Repository.add(name);
+                Journal.commit();
+                addWall += System.nanoTime() - wall;
+                addCpu += bean.getCurrentThreadCpuTime() - cpu;
+            }
+
+            long wall = System.nanoTime();
+            long cpu = bean.getCurrentThreadCpuTime();
+            Repository.generalCommit("benchmark", Repository.headId(), null);
+            Journal.commit();
+            long commitWall = System.nanoTime() - wall;
+            long commitCpu = bean.getCurrentThreadCpuTime() - cpu;
+
+            Repository.checkout(new String[] {"checkout", "empty"});
+            Journal.commit();
+            wall = System.nanoTime();
+            cpu = bean.getCurrentThreadCpuTime();
+            Repository.checkout(new String[] {"checkout", "master"});
+            Journal.commit();
+            long checkoutWall = System.nanoTime() - wall;
+            long checkoutCpu = bean.getCurrentThreadCpuTime() - cpu;
+
+            long stored = size(ObjectStore.OBJECTS);
+            System.out.printf("%5d %12d %5.2fx %11d %11d %11d %11d %11d %11d%n", level,
+                    stored, (double) rawBytes / stored, addWall / 1000000, addCpu / 1000000,
+                    commitWall / 1000000, commitCpu / 1000000, checkoutWall / 1000000,
+                    checkoutCpu / 1000000);
+        }
+    }
+
+    /** Run the global-log benchmark over a history of COMMITS commits. */
+    private static void globalLog(int commits) {
+        Repository.initCommand();
+        File file = Utils.join(Repository.CWD, "f.txt");
+        for (int i = 0; i < commits; i++) {
+            Utils.writeContents(file, Integer.toString(i));
+            Repository.add("f.txt");
+            Repository.generalCommit("commit number " + i, Repository.headId(), null);
+            Journal.commit();
+        }
+        OutputStream sink = OutputStream.nullOutputStream();
+        GlobalLog.print(sink, 1);
+        System.out.printf("%d commits%n", commits + 1);
+        System.out.printf("%7s %11s %13s%n", "workers", "ms", "commits/sec");
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int workers = 1; ; workers = Math.min(workers * 2, processors)) {
+            long wall = System.nanoTime();
+            int printed = GlobalLog.print(sink, workers);
+            long elapsed = Math.max(1, System.nanoTime() - wall);
+            System.out.printf("%7d %11d %13.0f%n", workers, elapsed / 1000000,
+                    printed * 1e9 / elapsed);
+            if (workers == processors) {
+                break;
+            }
+        }
+    }
+
+    /** Drops everything cached from the repository just deleted, so that
+     *  the next one made in its place starts afresh. */
+    private static void reset() {
+        Journal.abort();
+        Repository.invalidate();
+        CommitGraph.invalidate();
+        Config.invalidate();
+        Pack.invalidate();
+        Stage.invalidate();
+        StatCache.invalidate();
+    }
+
+    /** Returns about LEN characters of random Java-like text. */
+    private static String sourceText(Random random, int len) {
+        String[] words = {"public", "static", "void", "int", "return", "if", "else",
+            "for", "String", "File", "commit", "blob", "=", "+", "(", ")", "{", "}",
+            ";", "\n    ", "\n"};
+        StringBuilder text = new StringBuilder(len + 16);
+        while (text.length() < len) {
+            text.append(words[random.nextInt(words.length)]).append(' ');
+            if (random.nextInt(8) == 0) {
+                text.append("name").append(random.nextInt(1000)).append(' ');
+            }
+        }
+        return text.toString();
+    }
+
+    /** Returns the total size of the files under FILE. */
+    private static long size(File file) {
+        if (file.isFile()) {
+            return file.length();
+        }
+        long total = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                total += size(child);
+            }
+        }
+        return total;
+    }
+
+    /** Deletes FILE and everything under it. */
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,58 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/** Thin client for gitlet serve: sends its arguments to the Server of the
+ *  repository in the current directory and copies back the output and exit
+ *  status. If no server is listening, runs the command itself, so it can
+ *  always be used in place of Main.
+ *
+ *  @author Jae Won Kim
+ */
+public class Client {
+
+    /** Usage: java gitlet.Client ARGS, with the same ARGS as Main. */
+    public static void main(String[] args) throws IOException {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(Server.SOCKET.toPath()));
+        } catch (IOException e) {
+            Main.main(args);
+            return;
+        }
+        int status;
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                int frame = in.readUnsignedByte();
+                int length = in.readInt();
+                if (frame == Server.EXIT) {
+                    status = length;
+                    break;
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                PrintStream target = frame == Server.STDERR ? System.err : System.out;
+                target.write(data, 0, length);
+                target.flush();
+            }
+        }
+        System.exit(status);
+    }
+}
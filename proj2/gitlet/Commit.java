@@ -1,12 +1,26 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.HashMap;
 
 /** Represents a gitlet commit object.
  *  does at a high level.
  *
+ *  Commits are stored in a compact binary form (see encode) whose header,
+ *  the parents, timestamp and message, comes first, so history walks can
+ *  stop reading after it. Since version 2 the tracked files are not listed
+ *  in the commit but in a Tree, whose root id ends the header. Commits
+ *  written by older versions, with a file list or with Java serialization,
+ *  are still read.
+ *
  *  @author Jae Won Kim
  */
 public class Commit implements Serializable {
@@ -17,6 +31,13 @@ public class Commit implements Serializable {
      * variable is used. We've provided one example for `message`.
      */
 
+    /** Fixed so that commits written before getId() existed still load. */
+    private static final long serialVersionUID = -4449389911042574573L;
+
+    /** Magic number and version of the binary format. */
+    static final int MAGIC = 0x47434d54;
+    static final int VERSION = 2;
+
     /** Two possible parents of each Commit */
     private String parent1;
     private String parent2;
@@ -30,6 +51,18 @@ public class Commit implements Serializable {
     /** Files i track and their respective blobs*/
     private HashMap<String, String> trackFiles;
 
+    /** My id, filled in when I am read or written so callers never have to
+     *  rehash me. Not part of what is hashed. */
+    private transient String id;
+
+    /** The id of my root Tree, or null until it is built. */
+    private transient String tree;
+
+    /** My encoding and the offset of its file section, kept while
+     *  trackFiles has not been decoded yet. */
+    private transient byte[] encoded;
+    private transient int filesOffset;
+
     /** for commit*/
     public Commit(String message, String parent1, String parent2) {
         this.message = message;
@@ -61,7 +94,152 @@ public class Commit implements Serializable {
     }
 
     public HashMap<String, String> getTrackFiles() {
+        if (this.trackFiles == null) {
+            if (this.tree != null) {
+                this.trackFiles = Tree.flatten(this.tree);
+            } else if (this.encoded != null) {
+                decodeFiles();
+            } else {
+                this.trackFiles = Repository.readCommit(this.id).getTrackFiles();
+            }
+        }
         return this.trackFiles;
     }
 
+    /** Returns the id of my root Tree, storing the trees of my files first
+     *  if I was read from a format without them. */
+    String getTree() {
+        if (this.tree == null) {
+            this.tree = Tree.build(getTrackFiles());
+        }
+        return this.tree;
+    }
+
+    /** Makes the Tree ROOT my files. */
+    void setTree(String root) {
+        this.tree = root;
+        this.trackFiles = null;
+        this.encoded = null;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    void setId(String id) {
+        this.id = id;
+    }
+
+    /** Used by the decoders. */
+    private Commit() {
+    }
+
+    /** Returns my binary encoding: MAGIC and VERSION, the number of parents
+     *  and their binary ids, the timestamp in milliseconds, the UTF-8
+     *  message preceded by its length, then the binary id of my root Tree.
+     *  Version 1 had, instead of the tree, the number of tracked files and,
+     *  sorted by name, each name and binary blob id. */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(parent1 == null ? 0 : parent2 == null ? 1 : 2);
+            if (parent1 != null) {
+                out.write(ObjectStore.toBinary(parent1));
+            }
+            if (parent2 != null) {
+                out.write(ObjectStore.toBinary(parent2));
+            }
+            out.writeLong(timestamp.getTime());
+            writeString(out, message);
+            out.write(ObjectStore.toBinary(getTree()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Returns the commit stored as DATA, in either the binary or the old
+     *  serialized form. The tracked files of a binary commit are only
+     *  decoded when first asked for. */
+    static Commit decode(byte[] data) {
+        if (data.length > 1 && (data[0] & 0xff) == 0xac && (data[1] & 0xff) == 0xed) {
+            return Utils.deserialize(data, Commit.class);
+        }
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        Commit commit = readHeader(bytes);
+        if (commit.tree == null) {
+            commit.encoded = data;
+            commit.filesOffset = data.length - bytes.available();
+        }
+        return commit;
+    }
+
+    /** Reads the header of a binary commit from IN, leaving IN at the start
+     *  of the file section of a version 1 commit. The result only has its
+     *  tracked files if they are later loaded by id or from its tree. */
+    static Commit readHeader(InputStream in) {
+        Commit commit = new Commit();
+        try {
+            DataInputStream data = new DataInputStream(in);
+            int version = data.readInt() == MAGIC ? data.readUnsignedByte() : -1;
+            if (version < 1 || version > VERSION) {
+                throw new IllegalArgumentException("not a commit");
+            }
+            int parents = data.readUnsignedByte();
+            if (parents > 0) {
+                commit.parent1 = readId(data);
+            }
+            if (parents > 1) {
+                commit.parent2 = readId(data);
+            }
+            commit.timestamp = new Date(data.readLong());
+            commit.message = readString(data);
+            if (version > 1) {
+                commit.tree = readId(data);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return commit;
+    }
+
+    /** Decodes the file section of my encoding. */
+    private void decodeFiles() {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                encoded, filesOffset, encoded.length - filesOffset));
+        try {
+            int count = in.readInt();
+            trackFiles = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                trackFiles.put(readString(in), readId(in));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        encoded = null;
+    }
+
+    /** Writes S to OUT as its length and UTF-8 bytes. */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Reads a string written by writeString from IN. */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Reads a binary id from IN and returns it in hexadecimal. */
+    private static String readId(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[Utils.UID_LENGTH / 2];
+        in.readFully(bytes);
+        return ObjectStore.toHex(bytes);
+    }
+
 }
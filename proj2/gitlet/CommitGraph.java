@@ -0,0 +1,477 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/** The shape of the history, kept in .gitlet/commit-graph so that walks
+ *  never have to open commit files. It holds commit ids in sorted order,
+ *  behind a 256-entry fan-out table on the first byte of the id so that
+ *  lookups and prefix searches are a short binary search, and, for each,
+ *  the positions of its parents, its timestamp and its generation number:
+ *  1 for a root, otherwise one more than the largest generation of its
+ *  parents. A commit's generation is always greater than that of any of
+ *  its ancestors.
+ *
+ *  Commits written since the sorted base was last saved follow it, in the
+ *  order they were written, in .gitlet/commit-graph-chain: a header naming
+ *  the size of the base it extends, then one fixed-size record per commit.
+ *  Their positions come after the base's, so adding a commit appends one
+ *  record through the Journal and moves nothing; the chain is searched
+ *  linearly. compact sorts the chain into the base, as gc and repack do,
+ *  and as adding does once the chain reaches MAX_CHAIN commits. The graph
+ *  is rebuilt from the commit files if it is missing.
+ *
+ *  @author Jae Won Kim
+ */
+class CommitGraph {
+
+    /** The commit-graph file, and the chain of commits added since. */
+    static final File GRAPH = join(Repository.GITLET_DIR, "commit-graph");
+    static final File CHAIN = join(Repository.GITLET_DIR, "commit-graph-chain");
+
+    /** Magic numbers and format version of GRAPH and CHAIN. */
+    private static final int MAGIC = 0x47434752;
+    private static final int CHAIN_MAGIC = 0x47434743;
+    private static final int VERSION = 2;
+
+    /** Length of a binary commit id. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Length of the header of CHAIN, and of each of its records. */
+    private static final int CHAIN_HEADER = 3 * Integer.BYTES;
+    private static final int RECORD_BYTES = ID_BYTES + 3 * Integer.BYTES + Long.BYTES;
+    /** Most commits the chain holds before it is compacted. */
+    static final int MAX_CHAIN = 4096;
+    /** Marks a missing parent. */
+    static final int NONE = -1;
+
+    /** The graph, loaded on first use. */
+    private static CommitGraph graph;
+
+    /** Number of commits, and of those in the sorted base. */
+    private int size;
+    private int base;
+    /** Number of commits saved, or NONE if the base must be saved again. */
+    private int saved;
+    /** Number of base commits whose id starts with a byte of at most i. */
+    private final int[] fanout = new int[256];
+    /** Binary ids, ID_BYTES apiece: sorted up to base, then the chain. */
+    private byte[] ids;
+    /** Positions of the parents of each commit, or NONE. */
+    private int[] parent1;
+    private int[] parent2;
+    /** Timestamp of each commit in milliseconds. */
+    private long[] timestamps;
+    /** Generation number of each commit. */
+    private int[] generations;
+
+    /** An empty graph with room for CAPACITY commits. */
+    private CommitGraph(int capacity) {
+        ids = new byte[capacity * ID_BYTES];
+        parent1 = new int[capacity];
+        parent2 = new int[capacity];
+        timestamps = new long[capacity];
+        generations = new int[capacity];
+    }
+
+    /** Returns the commit graph of this repository. */
+    static CommitGraph get() {
+        if (graph == null) {
+            graph = GRAPH.isFile() ? read() : rebuild();
+        }
+        return graph;
+    }
+
+    /** Returns the graph, read again if it lacks any of the commits IDS.
+     *  Commands that only read may have loaded it before a writer added a
+     *  commit that the refs they resolved name; GRAPH is always replaced
+     *  before those refs are. */
+    static CommitGraph containing(String... ids) {
+        CommitGraph g = get();
+        for (String id : ids) {
+            if (id != null && g.indexOf(id) == NONE) {
+                invalidate();
+                return get();
+            }
+        }
+        return g;
+    }
+
+    /** Rebuilds the graph from the commit files but those in GONE, which
+     *  are being deleted. */
+    static void reload(Set<String> gone) {
+        graph = rebuild(gone);
+    }
+
+    /** Drops the loaded graph, so that it is read again on next use. */
+    static void invalidate() {
+        graph = null;
+    }
+
+    /** Adds the newly written COMMIT, whose parents are already in the
+     *  graph, and saves the graph. */
+    static void add(Commit commit) {
+        CommitGraph g = get();
+        if (g.indexOf(commit.getId()) != NONE) {
+            return;
+        }
+        if (commit.getParent1() != null && g.indexOf(commit.getParent1()) == NONE
+                || commit.getParent2() != null && g.indexOf(commit.getParent2()) == NONE) {
+            graph = rebuild();
+            return;
+        }
+        g.append(commit);
+        if (g.size - g.base >= MAX_CHAIN) {
+            g.sort();
+        }
+        Batch.write(GRAPH, () -> graph.save());
+    }
+
+    /** Sorts the chain into the base and saves the graph, if there is a
+     *  chain. */
+    static void compact() {
+        CommitGraph g = get();
+        if (g.base < g.size) {
+            g.sort();
+            Batch.write(GRAPH, () -> graph.save());
+        }
+    }
+
+    /** Number of commits in the graph. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the position of the commit ID, or NONE if it is absent. */
+    int indexOf(String id) {
+        byte[] key = ObjectStore.toBinary(id);
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : fanout[first - 1];
+        int hi = fanout[first] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = Arrays.compareUnsigned(ids, mid * ID_BYTES, (mid + 1) * ID_BYTES,
+                    key, 0, ID_BYTES);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        for (int i = base; i < size; i++) {
+            if (Arrays.equals(ids, i * ID_BYTES, (i + 1) * ID_BYTES, key, 0, ID_BYTES)) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    /** Returns the ids of at most LIMIT commits whose id starts with the
+     *  hexadecimal PREFIX, in order. */
+    List<String> withPrefix(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        if (prefix.isEmpty() || !prefix.matches("[0-9a-f]{1,40}")) {
+            return result;
+        }
+        StringBuilder padded = new StringBuilder(prefix);
+        while (padded.length() < UID_LENGTH) {
+            padded.append('0');
+        }
+        byte[] key = ObjectStore.toBinary(padded.toString());
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : fanout[first - 1];
+        int hi = base;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Arrays.compareUnsigned(ids, mid * ID_BYTES, (mid + 1) * ID_BYTES,
+                    key, 0, ID_BYTES) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < base && result.size() < limit; i++) {
+            String id = idAt(i);
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            result.add(id);
+        }
+        for (int i = base; i < size; i++) {
+            String id = idAt(i);
+            if (id.startsWith(prefix)) {
+                result.add(id);
+            }
+        }
+        Collections.sort(result);
+        return result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    /** Returns the id of the commit at position I. */
+    String idAt(int i) {
+        return ObjectStore.toHex(Arrays.copyOfRange(ids, i * ID_BYTES, (i + 1) * ID_BYTES));
+    }
+
+    /** Returns the position of the first parent of the commit at I, or NONE. */
+    int parent1(int i) {
+        return parent1[i];
+    }
+
+    /** Returns the position of the second parent of the commit at I, or NONE. */
+    int parent2(int i) {
+        return parent2[i];
+    }
+
+    /** Returns the timestamp of the commit at I. */
+    long timestamp(int i) {
+        return timestamps[i];
+    }
+
+    /** Returns the generation number of the commit at I. */
+    int generation(int i) {
+        return generations[i];
+    }
+
+    /** Adds COMMIT to the end of the chain. */
+    private void append(Commit commit) {
+        int p1 = commit.getParent1() == null ? NONE : indexOf(commit.getParent1());
+        int p2 = commit.getParent2() == null ? NONE : indexOf(commit.getParent2());
+        if (size == parent1.length) {
+            grow(size * 2 + 16);
+        }
+        System.arraycopy(ObjectStore.toBinary(commit.getId()), 0, ids, size * ID_BYTES,
+                ID_BYTES);
+        parent1[size] = p1;
+        parent2[size] = p2;
+        timestamps[size] = commit.getTimestamp().getTime();
+        generations[size] = 1 + Math.max(p1 == NONE ? 0 : generations[p1],
+                p2 == NONE ? 0 : generations[p2]);
+        size++;
+    }
+
+    /** Sorts every commit into the base, renumbering parent positions. */
+    private void sort() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> Arrays.compareUnsigned(ids, x * ID_BYTES,
+                (x + 1) * ID_BYTES, ids, y * ID_BYTES, (y + 1) * ID_BYTES));
+        int[] position = new int[size];
+        for (int i = 0; i < size; i++) {
+            position[order[i]] = i;
+        }
+        CommitGraph sorted = new CommitGraph(size);
+        for (int i = 0; i < size; i++) {
+            int from = order[i];
+            System.arraycopy(ids, from * ID_BYTES, sorted.ids, i * ID_BYTES, ID_BYTES);
+            sorted.parent1[i] = parent1[from] == NONE ? NONE : position[parent1[from]];
+            sorted.parent2[i] = parent2[from] == NONE ? NONE : position[parent2[from]];
+            sorted.timestamps[i] = timestamps[from];
+            sorted.generations[i] = generations[from];
+        }
+        ids = sorted.ids;
+        parent1 = sorted.parent1;
+        parent2 = sorted.parent2;
+        timestamps = sorted.timestamps;
+        generations = sorted.generations;
+        base = size;
+        saved = NONE;
+        computeFanout();
+    }
+
+    /** Makes room for CAPACITY commits. */
+    private void grow(int capacity) {
+        ids = Arrays.copyOf(ids, capacity * ID_BYTES);
+        parent1 = Arrays.copyOf(parent1, capacity);
+        parent2 = Arrays.copyOf(parent2, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+    }
+
+    /** Builds the graph from the commit files and saves it. */
+    static CommitGraph rebuild() {
+        return rebuild(Collections.emptySet());
+    }
+
+    /** Builds the graph from the commit files but those in GONE and saves
+     *  it. */
+    private static CommitGraph rebuild(Set<String> gone) {
+        String[] commitIds = Arrays.stream(Repository.COMMIT.list())
+                .filter(id -> !gone.contains(id)).sorted().toArray(String[]::new);
+        List<Commit> commits = new ArrayList<>();
+        CommitGraph g = new CommitGraph(commitIds.length);
+        g.size = commitIds.length;
+        g.base = g.size;
+        g.saved = NONE;
+        for (int i = 0; i < commitIds.length; i++) {
+            System.arraycopy(ObjectStore.toBinary(commitIds[i]), 0, g.ids, i * ID_BYTES,
+                    ID_BYTES);
+            commits.add(Repository.readCommitHeader(commitIds[i]));
+        }
+        g.computeFanout();
+        for (int i = 0; i < commitIds.length; i++) {
+            Commit commit = commits.get(i);
+            g.parent1[i] = commit.getParent1() == null ? NONE : g.indexOf(commit.getParent1());
+            g.parent2[i] = commit.getParent2() == null ? NONE : g.indexOf(commit.getParent2());
+            g.timestamps[i] = commit.getTimestamp().getTime();
+        }
+        for (int i = 0; i < commitIds.length; i++) {
+            g.computeGeneration(i);
+        }
+        g.save();
+        return g;
+    }
+
+    /** Fills in the generation of the commit at START and of all its
+     *  ancestors, iteratively so that long histories do not overflow the
+     *  stack. */
+    private void computeGeneration(int start) {
+        ArrayList<Integer> stack = new ArrayList<>();
+        stack.add(start);
+        while (!stack.isEmpty()) {
+            int i = stack.get(stack.size() - 1);
+            if (generations[i] != 0) {
+                stack.remove(stack.size() - 1);
+                continue;
+            }
+            boolean ready = true;
+            for (int p : new int[] {parent1[i], parent2[i]}) {
+                if (p != NONE && generations[p] == 0) {
+                    stack.add(p);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                int g1 = parent1[i] == NONE ? 0 : generations[parent1[i]];
+                int g2 = parent2[i] == NONE ? 0 : generations[parent2[i]];
+                generations[i] = 1 + Math.max(g1, g2);
+                stack.remove(stack.size() - 1);
+            }
+        }
+    }
+
+    /** Fills in the fan-out table from the sorted ids. */
+    private void computeFanout() {
+        Arrays.fill(fanout, 0);
+        for (int i = 0; i < base; i++) {
+            fanout[ids[i * ID_BYTES] & 0xff]++;
+        }
+        for (int b = 1; b < fanout.length; b++) {
+            fanout[b] += fanout[b - 1];
+        }
+    }
+
+    /** Reads GRAPH and CHAIN, rebuilding the graph if the chain does not
+     *  extend this base. A record cut short at the end of the chain is one
+     *  still being appended, and is left out. */
+    private static CommitGraph read() {
+        ByteBuffer in = ByteBuffer.wrap(readContents(GRAPH));
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            return rebuild();
+        }
+        int count = in.getInt();
+        ByteBuffer chain = CHAIN.isFile() ? ByteBuffer.wrap(readContents(CHAIN)) : null;
+        int added = 0;
+        if (chain != null) {
+            if (chain.remaining() < CHAIN_HEADER || chain.getInt() != CHAIN_MAGIC
+                    || chain.getInt() != VERSION || chain.getInt() != count) {
+                return rebuild();
+            }
+            added = chain.remaining() / RECORD_BYTES;
+        }
+        CommitGraph g = new CommitGraph(count + added);
+        g.size = count + added;
+        g.base = count;
+        g.saved = g.size;
+        for (int b = 0; b < g.fanout.length; b++) {
+            g.fanout[b] = in.getInt();
+        }
+        in.get(g.ids, 0, count * ID_BYTES);
+        for (int i = 0; i < count; i++) {
+            g.parent1[i] = in.getInt();
+            g.parent2[i] = in.getInt();
+            g.timestamps[i] = in.getLong();
+            g.generations[i] = in.getInt();
+        }
+        for (int i = count; i < g.size; i++) {
+            chain.get(g.ids, i * ID_BYTES, ID_BYTES);
+            g.parent1[i] = chain.getInt();
+            g.parent2[i] = chain.getInt();
+            g.timestamps[i] = chain.getLong();
+            g.generations[i] = chain.getInt();
+        }
+        return g;
+    }
+
+    /** Saves what is not yet saved of this graph when the Journal commits:
+     *  the commits added to the chain since, or, if the base changed, the
+     *  whole graph sorted into the base, deleting the chain. */
+    private void save() {
+        if (saved == NONE) {
+            if (base < size) {
+                sort();
+            }
+            writeBase();
+            Journal.delete(CHAIN);
+        } else if (saved < size) {
+            int from = Math.max(saved, base);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    CHAIN_HEADER + (size - from) * RECORD_BYTES);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                if (from == base) {
+                    out.writeInt(CHAIN_MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(base);
+                }
+                for (int i = from; i < size; i++) {
+                    out.write(ids, i * ID_BYTES, ID_BYTES);
+                    out.writeInt(parent1[i]);
+                    out.writeInt(parent2[i]);
+                    out.writeLong(timestamps[i]);
+                    out.writeInt(generations[i]);
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+            long offset = from == base ? 0 : CHAIN_HEADER + (long) (from - base) * RECORD_BYTES;
+            Journal.append(CHAIN, offset, bytes.toByteArray());
+        }
+        saved = size;
+    }
+
+    /** Writes the sorted base, which must hold every commit, to GRAPH. */
+    private void writeBase() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                12 + 4 * fanout.length + size * (ID_BYTES + 20));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            for (int count : fanout) {
+                out.writeInt(count);
+            }
+            out.write(ids, 0, size * ID_BYTES);
+            for (int i = 0; i < size; i++) {
+                out.writeInt(parent1[i]);
+                out.writeInt(parent2[i]);
+                out.writeLong(timestamps[i]);
+                out.writeInt(generations[i]);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Journal.write(GRAPH, bytes.toByteArray());
+    }
+}
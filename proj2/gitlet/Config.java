@@ -0,0 +1,81 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import static gitlet.Utils.*;
+
+/** Per-repository settings, kept as key=value lines in .gitlet/config.
+ *
+ *  @author Jae Won Kim
+ */
+class Config {
+
+    /** The config file. */
+    static final File CONFIG = join(Repository.GITLET_DIR, "config");
+
+    /** The settings, loaded on first use. */
+    private static Properties props;
+
+    /** Returns the value of KEY, or null if it is not set. */
+    static String get(String key) {
+        return load().getProperty(key);
+    }
+
+    /** Returns the integer value of KEY, or DEFAULTVALUE if it is not set. */
+    static int getInt(String key, int defaultValue) {
+        String value = get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw error("Invalid value for %s: %s", key, value);
+        }
+    }
+
+    /** Sets KEY to VALUE. The file is written aside and renamed over
+     *  CONFIG, so it is never seen half written. */
+    static void set(String key, String value) {
+        load().setProperty(key, value);
+        File temp = join(Repository.GITLET_DIR, "config.tmp");
+        try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+            props.store(out, null);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), CONFIG.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Drops the loaded settings, so that they are read again on next use. */
+    static void invalidate() {
+        props = null;
+    }
+
+    /** Returns the current settings. */
+    private static Properties load() {
+        if (props != null) {
+            return props;
+        }
+        props = new Properties();
+        if (CONFIG.isFile()) {
+            try (InputStream in = Files.newInputStream(CONFIG.toPath())) {
+                props.load(in);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        return props;
+    }
+}
@@ -0,0 +1,127 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+
+/** Copy/insert deltas between two versions of a blob. A delta is the
+ *  size of the base and of the result, followed by a sequence of
+ *  instructions that either copy a run of bytes out of the base or insert
+ *  literal bytes. All numbers are unsigned base-128 varints.
+ *
+ *  @author Jae Won Kim
+ */
+class Delta {
+
+    /** Instruction that inserts the literal bytes that follow it. */
+    private static final int INSERT = 0;
+    /** Instruction that copies a range of the base. */
+    private static final int COPY = 1;
+    /** Length of the blocks of the base that are indexed for matching. */
+    private static final int BLOCK = 16;
+
+    /** Returns a delta that turns BASE into TARGET. */
+    static byte[] create(byte[] base, byte[] target) {
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(blockHash(base, i), i);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        int pos = 0;
+        int pending = 0;
+        while (pos < target.length) {
+            Integer start = pos + BLOCK <= target.length
+                    ? blocks.get(blockHash(target, pos)) : null;
+            int len = 0;
+            if (start != null) {
+                while (start + len < base.length && pos + len < target.length
+                        && base[start + len] == target[pos + len]) {
+                    len++;
+                }
+            }
+            if (len >= BLOCK) {
+                flushInsert(out, target, pos - pending, pending);
+                pending = 0;
+                out.write(COPY);
+                writeVarint(out, start);
+                writeVarint(out, len);
+                pos += len;
+            } else {
+                pending++;
+                pos++;
+            }
+        }
+        flushInsert(out, target, pos - pending, pending);
+        return out.toByteArray();
+    }
+
+    /** Returns the result of applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        int baseSize = readVarint(delta, pos);
+        if (baseSize != base.length) {
+            throw new IllegalArgumentException("delta does not match its base");
+        }
+        byte[] result = new byte[readVarint(delta, pos)];
+        int out = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++];
+            if (op == COPY) {
+                int start = readVarint(delta, pos);
+                int len = readVarint(delta, pos);
+                System.arraycopy(base, start, result, out, len);
+                out += len;
+            } else {
+                int len = readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], result, out, len);
+                pos[0] += len;
+                out += len;
+            }
+        }
+        return result;
+    }
+
+    /** Writes an insert of the LEN bytes of DATA starting at START, if any. */
+    private static void flushInsert(ByteArrayOutputStream out, byte[] data,
+                                    int start, int len) {
+        if (len > 0) {
+            out.write(INSERT);
+            writeVarint(out, len);
+            out.write(data, start, len);
+        }
+    }
+
+    /** Hash of the BLOCK bytes of DATA starting at START. */
+    private static int blockHash(byte[] data, int start) {
+        int h = 0;
+        for (int i = start; i < start + BLOCK; i++) {
+            h = 31 * h + data[i];
+        }
+        return h;
+    }
+
+    /** Writes the non-negative VALUE to OUT as a varint. */
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while (value >= 0x80) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Reads a varint from DATA at POS[0], advancing POS[0] past it. */
+    static int readVarint(byte[] data, int[] pos) {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[pos[0]++] & 0xff;
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+}
@@ -0,0 +1,208 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/** gitlet gc [--dry-run]: deletes the commits and objects that nothing
+ *  refers to any more, such as those left behind by reset, rm-branch and
+ *  merge conflicts, together with temporary files left by commands that
+ *  died.
+ *
+ *  Marking starts from every branch and HEAD: the commits reachable from
+ *  them through the CommitGraph, then, in parallel over those commits, the
+ *  trees and blobs under each, shared trees being visited once. Staged
+ *  blobs are marked too. Everything else is swept, unless it was written
+ *  within the last gc.graceperiod seconds (default two weeks), so that
+ *  objects a concurrent reader may still be looking at survive. A commit
+ *  kept that way is marked like a branch, with its ancestors and all that
+ *  is under them, however old, so that it stays whole. Packed garbage is
+ *  dropped by repacking, once its pack is past the grace period.
+ *
+ *  A crash at any point leaves a whole repository. The Journal is
+ *  checkpointed before anything is swept, so that replaying it cannot
+ *  bring back what is deleted. The swept commits are then deleted through
+ *  the Journal, in one transaction with the commit graph rebuilt without
+ *  them, and that transaction is committed before any object is deleted,
+ *  so no commit ever outlives the objects it uses. What is left after a
+ *  crash is garbage that the next gc finds again; the repack that drops
+ *  packed garbage is safe on its own, as described in Pack.
+ *
+ *  With --dry-run, nothing is deleted; the same report says what would be.
+ *
+ *  @author Jae Won Kim
+ */
+class GarbageCollector {
+
+    /** Config key of the grace period, in seconds. */
+    static final String GRACE_KEY = "gc.graceperiod";
+    /** Default grace period: two weeks. */
+    private static final int DEFAULT_GRACE = 14 * 24 * 60 * 60;
+
+    /** Marks, sweeps and reports, deleting nothing if DRYRUN. */
+    static void collect(boolean dryRun) {
+        long cutoff = System.currentTimeMillis()
+                - TimeUnit.SECONDS.toMillis(Config.getInt(GRACE_KEY, DEFAULT_GRACE));
+        Set<String> marked = ConcurrentHashMap.newKeySet();
+        marked.addAll(Stage.added().values());
+        mark(Repository.refTargets(), marked);
+        List<String> young = new ArrayList<>();
+        for (String id : plainFilenamesIn(Repository.COMMIT)) {
+            if (!marked.contains(id) && join(Repository.COMMIT, id).lastModified() >= cutoff) {
+                young.add(id);
+            }
+        }
+        int reachable = marked.size();
+        mark(young, marked);
+        if (!dryRun) {
+            Journal.checkpoint();
+        }
+
+        long bytes = 0;
+        int recent = marked.size() - reachable;
+        List<File> commits = new ArrayList<>();
+        for (String id : plainFilenamesIn(Repository.COMMIT)) {
+            if (!marked.contains(id)) {
+                commits.add(join(Repository.COMMIT, id));
+            }
+        }
+        List<File> objects = new ArrayList<>();
+        for (String id : Pack.looseIds()) {
+            if (!marked.contains(id)) {
+                objects.add(ObjectStore.objectFile(id));
+            }
+        }
+        List<File> temps = temporaryFiles();
+        for (List<File> files : List.of(commits, objects, temps)) {
+            int before = files.size();
+            files.removeIf(file -> file.lastModified() >= cutoff);
+            recent += before - files.size();
+            for (File file : files) {
+                bytes += file.length();
+            }
+        }
+        Set<String> packed = new HashSet<>();
+        for (String id : Pack.allIds()) {
+            if (marked.contains(id)) {
+                continue;
+            } else if (Pack.modified(id) >= cutoff) {
+                recent++;
+            } else {
+                packed.add(id);
+                bytes += Pack.entrySize(id);
+            }
+        }
+
+        if (!dryRun) {
+            if (!commits.isEmpty()) {
+                Set<String> gone = new HashSet<>();
+                for (File file : commits) {
+                    gone.add(file.getName());
+                    Journal.delete(file);
+                }
+                CommitGraph.reload(gone);
+                MessageIndex.rebuild();
+            } else {
+                CommitGraph.compact();
+            }
+            Batch.commit();
+            for (List<File> files : List.of(objects, temps)) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            ObjectReader.clear();
+            if (!packed.isEmpty()) {
+                Repository.repack(packed);
+            }
+        }
+        System.out.printf("%s %d bytes: %d commits, %d objects, %d temporary files.%n",
+                dryRun ? "Would reclaim" : "Reclaimed", bytes, commits.size(),
+                objects.size() + packed.size(), temps.size());
+        if (recent > 0) {
+            System.out.printf("Kept %d unreachable files within the grace period.%n", recent);
+        }
+    }
+
+    /** Adds to MARKED the commits ROOTS, their ancestors and the trees and
+     *  blobs under each, stopping at commits already in MARKED. */
+    private static void mark(Collection<String> roots, Set<String> marked) {
+        CommitGraph graph = CommitGraph.containing(roots.toArray(new String[0]));
+        List<String> commits = new ArrayList<>();
+        List<Integer> stack = new ArrayList<>();
+        for (String root : roots) {
+            stack.add(graph.indexOf(root));
+        }
+        while (!stack.isEmpty()) {
+            int at = stack.remove(stack.size() - 1);
+            if (at == CommitGraph.NONE || !marked.add(graph.idAt(at))) {
+                continue;
+            }
+            commits.add(graph.idAt(at));
+            stack.add(graph.parent1(at));
+            stack.add(graph.parent2(at));
+        }
+        commits.parallelStream().forEach(id ->
+                markTree(Repository.readCommitHeader(id).getTree(), marked));
+    }
+
+    /** Marks the tree ID and everything under it, unless already MARKED. */
+    private static void markTree(String id, Set<String> marked) {
+        if (!marked.add(id)) {
+            return;
+        }
+        for (Tree.Entry entry : Tree.read(id).values()) {
+            if (entry.type() == Tree.TREE) {
+                markTree(entry.id(), marked);
+            } else {
+                marked.add(entry.id());
+            }
+        }
+    }
+
+    /** Returns the temporary files under .gitlet: those under its tmp
+     *  directory and those whose names end in .tmp. Files that commands
+     *  running beside this one delete while they are listed are skipped. */
+    private static List<File> temporaryFiles() {
+        Path tmp = Materializer.TMP.toPath();
+        List<File> result = new ArrayList<>();
+        try {
+            Files.walkFileTree(Repository.GITLET_DIR.toPath(), new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && (file.startsWith(tmp)
+                            || file.getFileName().toString().endsWith(".tmp"))) {
+                        result.add(file.toFile());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e)
+                        throws IOException {
+                    if (e instanceof NoSuchFileException) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    throw e;
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return result;
+    }
+}
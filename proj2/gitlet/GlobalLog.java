@@ -0,0 +1,94 @@
+package gitlet;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Formatter;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Prints global-log: every commit in the repository, newest first, ties
+ *  broken by id so that the order never depends on the file system.
+ *
+ *  The order comes from the CommitGraph alone. Commits are then decoded
+ *  and formatted by a fixed pool of workers in batches of BATCH, and the
+ *  text of each batch is written, in order, through a single large
+ *  buffered writer. At most a few batches per worker are in flight at a
+ *  time, so memory does not grow with the size of the history.
+ *
+ *  @author Jae Won Kim
+ */
+class GlobalLog {
+
+    /** Commits formatted by one task. */
+    private static final int BATCH = 256;
+    /** Batches that may be in flight per worker. */
+    private static final int WINDOW = 4;
+    /** Size of the output buffer. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** Prints global-log to OUT using up to WORKERS threads, and returns
+     *  the number of commits printed. OUT is flushed but not closed. */
+    static int print(OutputStream out, int workers) {
+        CommitGraph graph = CommitGraph.get();
+        List<Integer> order = new ArrayList<>(graph.size());
+        for (int i = 0; i < graph.size(); i++) {
+            order.add(i);
+        }
+        order.sort((x, y) -> {
+            int cmp = Long.compare(graph.timestamp(y), graph.timestamp(x));
+            return cmp != 0 ? cmp : graph.idAt(x).compareTo(graph.idAt(y));
+        });
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers));
+        ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+            for (int start = 0; start < order.size(); start += BATCH) {
+                List<Integer> batch = order.subList(start,
+                        Math.min(start + BATCH, order.size()));
+                if (pending.size() == WINDOW * Math.max(1, workers)) {
+                    writer.write(pending.remove().get());
+                }
+                pending.add(pool.submit(() -> format(graph, batch)));
+            }
+            while (!pending.isEmpty()) {
+                writer.write(pending.remove().get());
+            }
+            writer.flush();
+        } catch (IOException | InterruptedException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalArgumentException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return order.size();
+    }
+
+    /** Returns the log entries of the commits at positions BATCH of GRAPH. */
+    private static String format(CommitGraph graph, List<Integer> batch) {
+        StringBuilder text = new StringBuilder(batch.size() * 128);
+        Formatter fmt = new Formatter(text);
+        for (int i : batch) {
+            String id = graph.idAt(i);
+            Commit commit = Repository.readCommitHeader(id);
+            Date cD = commit.getTimestamp();
+            text.append("===\ncommit ").append(id).append("\nDate: ");
+            fmt.format("%ta %tb %te %tT %tY %tz", cD, cD, cD, cD, cD, cD);
+            text.append('\n').append(commit.getMessage()).append("\n\n");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,531 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static gitlet.Utils.*;
+
+/** Makes each command's changes to the repository durable and atomic
+ *  without an fsync per file.
+ *
+ *  While a command runs, the new contents of the files that make up the
+ *  repository's state (HEAD, the Refs, the staging area and the commit graph)
+ *  are held here, and the objects and commits it stores are noted. On
+ *  commit, all of it is appended to .gitlet/journal as one transaction with
+ *  a checksum, and the journal alone is synced; that is the point at which
+ *  the command has happened. Only then are the state files replaced, each
+ *  by a temporary file renamed over it, or, for files that only grow, such
+ *  as the commit graph's chain, written in place from the offset the
+ *  transaction appends at; then an APPLIED trailer is appended.
+ *  Objects of at most INLINE_LIMIT bytes are copied into the journal;
+ *  larger ones are synced where they are.
+ *
+ *  The files written since the journal was started are not synced, so the
+ *  journal is kept until it passes CHECKPOINT_SIZE, when they all are and it
+ *  is deleted. On the next command after a crash, a journal that does not
+ *  end with APPLIED has its last transaction applied again, and one written
+ *  before the machine last booted (which may have lost unsynced files) has
+ *  all of them applied again. A transaction cut short by the crash, whose
+ *  checksum does not match, never happened. Where the boot cannot be told,
+ *  every transaction is checkpointed at once.
+ *
+ *  repack and gc delete objects outside the journal. They are safe
+ *  without it because neither deletes the only copy of anything still in
+ *  use: repack syncs its new pack into place before deleting what it
+ *  replaces, and gc commits the removal of commits before it deletes any
+ *  object, as described in Pack and GarbageCollector.
+ *
+ *  @author Jae Won Kim
+ */
+class Journal {
+
+    /** The journal file. */
+    static final File JOURNAL = join(Repository.GITLET_DIR, "journal");
+
+    /** Magic number and format version of JOURNAL. */
+    private static final int MAGIC = 0x474a4e4c;
+    private static final int VERSION = 1;
+    /** Marks the end of a transaction that has been applied. */
+    private static final long APPLIED = 0x4150504c49454421L;
+
+    /** Objects larger than this are synced rather than journaled. */
+    static final int INLINE_LIMIT = 1 << 20;
+    /** Size past which the journal is checkpointed. */
+    static final long CHECKPOINT_SIZE = 64L << 20;
+
+    /** Longest a snapshot waits on a transaction being applied, in tries of
+     *  about a millisecond. */
+    private static final int SNAPSHOT_TRIES = 1000;
+
+    /** Where the kernel reports the id of the current boot. */
+    private static final Path BOOT_ID = Paths.get("/proc/sys/kernel/random/boot_id");
+
+    /** Changes to the state files, in the order they were first made. */
+    private static final Map<File, Record> PENDING = new LinkedHashMap<>();
+    /** Object and commit files stored since the last commit. */
+    private static final Set<File> OBJECTS = ConcurrentHashMap.newKeySet();
+
+    /** Sets the contents of the state file FILE to CONTENTS when the
+     *  current transaction commits. */
+    static synchronized void write(File file, byte[] contents) {
+        PENDING.put(file, new Record(file, Record.WHOLE, contents));
+    }
+
+    /** Deletes the state file FILE when the current transaction commits. */
+    static synchronized void delete(File file) {
+        PENDING.put(file, new Record(file, Record.WHOLE, null));
+    }
+
+    /** Writes BYTES into the state file FILE at OFFSET, cutting off what
+     *  follows, when the current transaction commits. FILE is not replaced,
+     *  so this costs only the length of BYTES however long FILE is. */
+    static synchronized void append(File file, long offset, byte[] bytes) {
+        Record earlier = PENDING.get(file);
+        if (earlier == null || offset < Math.max(earlier.offset, 0)) {
+            PENDING.put(file, new Record(file, offset, bytes));
+            return;
+        }
+        long start = Math.max(earlier.offset, 0);
+        byte[] contents = earlier.contents == null ? new byte[0] : earlier.contents;
+        contents = Arrays.copyOf(contents, (int) (offset - start) + bytes.length);
+        System.arraycopy(bytes, 0, contents, (int) (offset - start), bytes.length);
+        PENDING.put(file, new Record(file, earlier.offset, contents));
+    }
+
+    /** True iff the current transaction changes the state file FILE. */
+    static synchronized boolean pending(File file) {
+        return PENDING.containsKey(file);
+    }
+
+    /** Returns the contents the state file FILE will have once the current
+     *  transaction commits, or null if it will not exist then. */
+    static synchronized byte[] contents(File file) {
+        Record record = PENDING.get(file);
+        if (record == null) {
+            return file.isFile() ? read(file) : null;
+        }
+        if (record.offset == Record.WHOLE) {
+            return record.contents;
+        }
+        byte[] contents = file.isFile() ? read(file) : new byte[0];
+        contents = Arrays.copyOf(contents, (int) record.offset + record.contents.length);
+        System.arraycopy(record.contents, 0, contents, (int) record.offset,
+                record.contents.length);
+        return contents;
+    }
+
+    /** Returns the length the state file FILE will have once the current
+     *  transaction commits. */
+    static synchronized long length(File file) {
+        Record record = PENDING.get(file);
+        if (record == null) {
+            return file.length();
+        }
+        if (record.contents == null) {
+            return 0;
+        }
+        return Math.max(record.offset, 0) + record.contents.length;
+    }
+
+    /** Notes that FILE, an object or commit, was just stored and must be
+     *  durable before the current transaction is. */
+    static void stored(File file) {
+        OBJECTS.add(file);
+    }
+
+    /** Drops the current transaction. */
+    static synchronized void abort() {
+        PENDING.clear();
+        OBJECTS.clear();
+    }
+
+    /** Makes the current transaction durable and applies it. */
+    static synchronized void commit() {
+        if (PENDING.isEmpty() && OBJECTS.isEmpty()) {
+            return;
+        }
+        List<Record> records = new ArrayList<>();
+        Set<File> dirs = new HashSet<>();
+        for (File object : OBJECTS) {
+            if (object.length() <= INLINE_LIMIT) {
+                records.add(new Record(object, Record.WHOLE, read(object)));
+            } else {
+                sync(object);
+                dirs.add(object.getParentFile());
+            }
+        }
+        records.addAll(PENDING.values());
+        dirs.forEach(Journal::sync);
+
+        String boot = bootId();
+        boolean created = !JOURNAL.isFile();
+        try (FileChannel journal = FileChannel.open(JOURNAL.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            if (created || journal.size() == 0) {
+                writeAll(journal, header(boot));
+            }
+            writeAll(journal, encode(records));
+            journal.force(false);
+            if (created) {
+                sync(Repository.GITLET_DIR);
+            }
+            List<File> order = new ArrayList<>(PENDING.keySet());
+            order.sort(Comparator.comparing(Journal::rank));
+            for (File file : order) {
+                apply(PENDING.get(file));
+            }
+            writeAll(journal, ByteBuffer.allocate(Long.BYTES).putLong(0, APPLIED));
+            if (boot.isEmpty() || journal.size() > CHECKPOINT_SIZE) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            PENDING.clear();
+            OBJECTS.clear();
+        }
+    }
+
+    /** Finishes whatever a crash interrupted, as described above. Cheap
+     *  when there is nothing to do. */
+    static synchronized void recover() {
+        if (!JOURNAL.isFile()) {
+            return;
+        }
+        byte[] data = read(JOURNAL);
+        String boot = null;
+        try {
+            ByteBuffer in = ByteBuffer.wrap(data);
+            if (in.getInt() == MAGIC && in.getInt() == VERSION) {
+                boot = readString(in);
+            }
+        } catch (BufferUnderflowException e) {
+            /* A header cut short: nothing was committed. */
+        }
+        boolean rebooted = boot == null || boot.isEmpty() || !boot.equals(bootId());
+        if (!rebooted && data.length >= Long.BYTES
+                && ByteBuffer.wrap(data).getLong(data.length - Long.BYTES) == APPLIED) {
+            return;
+        }
+        List<List<Record>> transactions = decode(data);
+        int first = rebooted ? 0 : Math.max(0, transactions.size() - 1);
+        for (int i = first; i < transactions.size(); i++) {
+            for (Record record : transactions.get(i)) {
+                apply(record);
+            }
+        }
+        checkpoint();
+    }
+
+    /** Runs READ, which reads the state files FILES, so that what it reads
+     *  is as of one moment between transactions. Commands that only read
+     *  run alongside a writer, without the WriteLock, so READ is run again
+     *  if a transaction was being applied or any of FILES or the journal
+     *  changed while it ran. A journal left unapplied by a writer that died
+     *  is waited on for at most SNAPSHOT_TRIES milliseconds. */
+    static void snapshot(Runnable read, File... files) {
+        for (int tries = 0; ; tries++) {
+            String before = stamps(files);
+            boolean settled = settled();
+            read.run();
+            if ((settled || tries >= SNAPSHOT_TRIES) && before.equals(stamps(files))) {
+                return;
+            }
+            if (!settled) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /** True iff no transaction is being applied: there is no journal, or
+     *  it ends with APPLIED. */
+    private static boolean settled() {
+        try (FileChannel journal = FileChannel.open(JOURNAL.toPath(), StandardOpenOption.READ)) {
+            long size = journal.size();
+            ByteBuffer tail = ByteBuffer.allocate(Long.BYTES);
+            if (size < Long.BYTES || journal.read(tail, size - Long.BYTES) < Long.BYTES) {
+                return size == 0;
+            }
+            return tail.getLong(0) == APPLIED;
+        } catch (IOException e) {
+            return !JOURNAL.exists();
+        }
+    }
+
+    /** Returns the stamps of FILES and the journal, together. */
+    private static String stamps(File... files) {
+        StringBuilder stamps = new StringBuilder(stamp(JOURNAL));
+        for (File file : files) {
+            stamps.append('/').append(stamp(file));
+        }
+        return stamps.toString();
+    }
+
+    /** Returns the inode, modification time and size of FILE as a string
+     *  that changes whenever FILE is replaced or rewritten, or "" if FILE
+     *  does not exist. */
+    static String stamp(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(),
+                    BasicFileAttributes.class);
+            return attrs.fileKey() + " " + attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    + " " + attrs.size();
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /** Syncs every file the journal has touched and deletes it. Used by
+     *  GarbageCollector, so that no transaction can bring back what it
+     *  deletes. */
+    static synchronized void checkpoint() {
+        Set<File> files = new HashSet<>();
+        if (JOURNAL.isFile()) {
+            for (List<Record> transaction : decode(read(JOURNAL))) {
+                for (Record record : transaction) {
+                    files.add(record.file);
+                }
+            }
+        }
+        Set<File> dirs = new HashSet<>();
+        files.parallelStream().filter(File::isFile).forEach(Journal::sync);
+        for (File file : files) {
+            dirs.add(file.getParentFile());
+        }
+        dirs.forEach(Journal::sync);
+        JOURNAL.delete();
+        sync(Repository.GITLET_DIR);
+    }
+
+    /** One file written by a transaction. */
+    private static class Record {
+        /** OFFSET of a record that replaces its whole file. */
+        static final long WHOLE = -1;
+
+        /** The file, where in it CONTENTS go, or WHOLE, and its new
+         *  contents, null if it is deleted. */
+        private final File file;
+        private final long offset;
+        private final byte[] contents;
+
+        Record(File file, long offset, byte[] contents) {
+            this.file = file;
+            this.offset = offset;
+            this.contents = contents;
+        }
+    }
+
+    /** Returns when FILE is replaced within a transaction, lowest first.
+     *  Refs come after the other files, so that a command reading without
+     *  the WriteLock never finds one naming a commit the graph lacks, and
+     *  packed refs before the loose ones that override them. */
+    private static int rank(File file) {
+        if (file.equals(Refs.PACKED)) {
+            return 1;
+        } else if (file.equals(Repository.HEAD) || file.toPath().startsWith(Refs.HEADS.toPath())) {
+            return 2;
+        }
+        return 0;
+    }
+
+    /** Returns the journal header for the boot BOOT. */
+    private static ByteBuffer header(String boot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, boot);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /** Returns RECORDS encoded as a transaction: their number, each path
+     *  relative to .gitlet with the length and bytes of its contents, or a
+     *  length of -1 for a deleted file, or -2 followed by the offset, length
+     *  and bytes of an append, and the CRC-32 of all that. */
+    private static ByteBuffer encode(List<Record> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(records.size());
+        Path root = Repository.GITLET_DIR.toPath();
+        for (Record record : records) {
+            writeString(out, root.relativize(record.file.toPath()).toString());
+            if (record.contents == null) {
+                out.writeInt(-1);
+            } else if (record.offset != Record.WHOLE) {
+                out.writeInt(-2);
+                out.writeLong(record.offset);
+                out.writeInt(record.contents.length);
+                out.write(record.contents);
+            } else {
+                out.writeInt(record.contents.length);
+                out.write(record.contents);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /** Returns the complete transactions in the journal DATA, in order,
+     *  stopping at the first one cut short. */
+    private static List<List<Record>> decode(byte[] data) {
+        List<List<Record>> transactions = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return transactions;
+            }
+            readString(in);
+            while (in.hasRemaining()) {
+                int start = in.position();
+                List<Record> records = new ArrayList<>();
+                for (int count = in.getInt(); count > 0; count--) {
+                    File file = join(Repository.GITLET_DIR, readString(in));
+                    int length = in.getInt();
+                    long offset = Record.WHOLE;
+                    if (length == -2) {
+                        offset = in.getLong();
+                        length = in.getInt();
+                    }
+                    if (length < -1 || length > in.remaining() || offset < Record.WHOLE) {
+                        return transactions;
+                    }
+                    byte[] contents = null;
+                    if (length >= 0) {
+                        contents = new byte[length];
+                        in.get(contents);
+                    }
+                    records.add(new Record(file, offset, contents));
+                }
+                CRC32 crc = new CRC32();
+                crc.update(data, start, in.position() - start);
+                if (in.getLong() != crc.getValue()) {
+                    return transactions;
+                }
+                transactions.add(records);
+                if (in.remaining() >= Long.BYTES && in.getLong(in.position()) == APPLIED) {
+                    in.getLong();
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            /* The rest was cut short. */
+        }
+        return transactions;
+    }
+
+    /** Writes S to OUT as its length and UTF-8 bytes. */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Reads a string written by writeString from IN. */
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Carries out RECORD. Doing so again has no further effect. */
+    private static void apply(Record record) {
+        if (record.offset == Record.WHOLE) {
+            replace(record.file, record.contents);
+            return;
+        }
+        record.file.getParentFile().mkdirs();
+        try (FileChannel channel = FileChannel.open(record.file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(record.offset);
+            channel.position(record.offset);
+            writeAll(channel, ByteBuffer.wrap(record.contents));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Replaces FILE by CONTENTS, through a temporary file renamed over it,
+     *  or deletes it if CONTENTS is null. */
+    private static void replace(File file, byte[] contents) {
+        if (contents == null) {
+            file.delete();
+            return;
+        }
+        file.getParentFile().mkdirs();
+        File temp = join(file.getParentFile(), file.getName() + ".tmp");
+        writeContents(temp, (Object) contents);
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Writes all of BUFFER to CHANNEL. */
+    private static void writeAll(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /** Flushes FILE, or the directory FILE, to disk. Directories that
+     *  cannot be opened for this are left as they are. */
+    static void sync(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            if (!file.isDirectory()) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+    }
+
+    /** Returns the contents of FILE. */
+    private static byte[] read(File file) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Returns the id of the current boot, or "" if it cannot be told. */
+    private static String bootId() {
+        try {
+            return Files.readString(BOOT_ID).trim();
+        } catch (IOException e) {
+            return "";
+        }
+    }
+}
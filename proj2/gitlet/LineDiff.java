@@ -0,0 +1,143 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/** Line diffs by Myers' O(ND) algorithm, in its linear-space form: the
+ *  middle snake of a shortest edit script is found by searching forward
+ *  from the start and backward from the end at once, and the two halves on
+ *  either side of it are solved in turn. Apart from the result, memory is
+ *  two arrays of about N + M entries, shared by every step.
+ *
+ *  Lines are compared as numbers: each distinct line is given one by
+ *  lines, so that files to be compared should be split with the same map.
+ *
+ *  @author Jae Won Kim
+ */
+class LineDiff {
+
+    /** Returns the offset of each line of DATA, followed by the length of
+     *  DATA, which runs from index 0 to its limit. Every line but perhaps
+     *  the last ends with a newline. */
+    static int[] lineStarts(ByteBuffer data) {
+        int length = data.limit();
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (data.get(i) == '\n' || i == length - 1) {
+                count++;
+            }
+        }
+        int[] starts = new int[count + 1];
+        int line = 1;
+        for (int i = 0; i < length; i++) {
+            if (data.get(i) == '\n' || i == length - 1) {
+                starts[line++] = i + 1;
+            }
+        }
+        return starts;
+    }
+
+    /** Returns the lines of DATA, which start at STARTS, as numbers given
+     *  by IDS, which assigns new numbers to lines it has not seen. Lines
+     *  are keyed by slices of DATA, which compare by content, so no line is
+     *  copied. */
+    static int[] lines(ByteBuffer data, int[] starts, Map<ByteBuffer, Integer> ids) {
+        int[] result = new int[starts.length - 1];
+        for (int i = 0; i < result.length; i++) {
+            ByteBuffer text = data.slice(starts[i], starts[i + 1] - starts[i]);
+            Integer id = ids.get(text);
+            if (id == null) {
+                id = ids.size();
+                ids.put(text, id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /** Returns, for each line of A, the index of the line of B it is kept
+     *  as in a shortest edit script from A to B, or -1 if it is deleted.
+     *  Matched indices increase with the lines of A. */
+    static int[] match(int[] a, int[] b) {
+        int[] result = new int[a.length];
+        Arrays.fill(result, -1);
+        int size = 2 * (a.length + b.length) + 3;
+        int[] forward = new int[size];
+        int[] backward = new int[size];
+        solve(a, 0, a.length, b, 0, b.length, result, forward, backward);
+        return result;
+    }
+
+    /** Records in RESULT a shortest edit script from A[ALO..AHI) to
+     *  B[BLO..BHI), using FORWARD and BACKWARD as scratch space. */
+    private static void solve(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi,
+                              int[] result, int[] forward, int[] backward) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            result[aLo++] = bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            result[--aHi] = --bHi;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            return;
+        }
+        int[] snake = middleSnake(a, aLo, aHi, b, bLo, bHi, forward, backward);
+        solve(a, aLo, snake[0], b, bLo, snake[1], result, forward, backward);
+        for (int x = snake[0], y = snake[1]; x < snake[2]; x++, y++) {
+            result[x] = y;
+        }
+        solve(a, snake[2], aHi, b, snake[3], bHi, result, forward, backward);
+    }
+
+    /** Returns the start and end, {x0, y0, x1, y1}, of the middle snake of
+     *  a shortest edit script from A[ALO..AHI) to B[BLO..BHI), which must
+     *  both be non-empty. */
+    private static int[] middleSnake(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi,
+                                     int[] forward, int[] backward) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int offset = n + m + 1;
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        for (int d = 0; d <= (n + m + 1) / 2; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || k != d && forward[offset + k - 1] < forward[offset + k + 1]
+                        ? forward[offset + k + 1] : forward[offset + k - 1] + 1;
+                int y = x - k;
+                int x0 = x;
+                int y0 = y;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                int back = delta - k;
+                if (odd && back >= -(d - 1) && back <= d - 1
+                        && x + backward[offset + back] >= n) {
+                    return new int[] {aLo + x0, bLo + y0, aLo + x, bLo + y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || k != d && backward[offset + k - 1] < backward[offset + k + 1]
+                        ? backward[offset + k + 1] : backward[offset + k - 1] + 1;
+                int y = x - k;
+                int x0 = x;
+                int y0 = y;
+                while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                int front = delta - k;
+                if (!odd && front >= -d && front <= d
+                        && x + forward[offset + front] >= n) {
+                    return new int[] {aHi - x, bHi - y, aHi - x0, bHi - y0};
+                }
+            }
+        }
+        throw new IllegalStateException("no middle snake");
+    }
+}
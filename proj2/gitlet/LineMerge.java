@@ -0,0 +1,191 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Three-way merge of file contents, line by line, in the manner of diff3.
+ *
+ *  OURS and THEIRS are each diffed against BASE with LineDiff. Base lines
+ *  that both sides keep in place are stable, and split the files into
+ *  chunks between them. A chunk only one side changed takes that side's
+ *  lines; a chunk both sides changed in the same way takes either. Only a
+ *  chunk both sides changed differently is a conflict, and is written
+ *  between conflict markers. Everything is done on ByteBuffers, which may
+ *  be views of mapped object files; only the merged result is copied.
+ *
+ *  @author Jae Won Kim
+ */
+class LineMerge {
+
+    /** The outcome of a merge. */
+    static class Result {
+        /** The merged contents. */
+        private final byte[] contents;
+        /** True iff CONTENTS holds conflict markers. */
+        private final boolean conflict;
+
+        Result(byte[] contents, boolean conflict) {
+            this.contents = contents;
+            this.conflict = conflict;
+        }
+
+        byte[] contents() {
+            return contents;
+        }
+
+        boolean conflict() {
+            return conflict;
+        }
+    }
+
+    /** Conflict markers. */
+    private static final byte[] OURS_MARKER = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SPLIT_MARKER = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END_MARKER = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NEWLINE = {'\n'};
+
+    /** Returns the merge of OURS and THEIRS, both changed from BASE. A null
+     *  BASE is taken as empty. If OURS or THEIRS is null, meaning the file
+     *  was deleted on that side, or any of them is binary, the whole of both
+     *  sides is one conflict. Each runs from its position to its limit. */
+    static Result merge(ByteBuffer base, ByteBuffer ours, ByteBuffer theirs) {
+        ours = ours == null ? null : ours.slice();
+        theirs = theirs == null ? null : theirs.slice();
+        base = base == null ? ByteBuffer.allocate(0) : base.slice();
+        if (ours == null || theirs == null
+                || isBinary(base) || isBinary(ours) || isBinary(theirs)) {
+            return conflict(ours, theirs);
+        }
+        Map<ByteBuffer, Integer> ids = new HashMap<>();
+        int[] bs = LineDiff.lineStarts(base);
+        int[] os = LineDiff.lineStarts(ours);
+        int[] ts = LineDiff.lineStarts(theirs);
+        int[] b = LineDiff.lines(base, bs, ids);
+        int[] o = LineDiff.lines(ours, os, ids);
+        int[] t = LineDiff.lines(theirs, ts, ids);
+        int[] mo = LineDiff.match(b, o);
+        int[] mt = LineDiff.match(b, t);
+
+        Output out = new Output(Math.max(ours.limit(), theirs.limit()));
+        boolean conflict = false;
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < b.length || j < o.length || k < t.length) {
+            if (i < b.length && mo[i] == j && mt[i] == k) {
+                out.write(base, bs[i], bs[i + 1]);
+                i++;
+                j++;
+                k++;
+                continue;
+            }
+            int next = i;
+            while (next < b.length && (mo[next] < 0 || mt[next] < 0)) {
+                next++;
+            }
+            int oEnd = next < b.length ? mo[next] : o.length;
+            int tEnd = next < b.length ? mt[next] : t.length;
+            boolean oursSame = same(b, i, next, o, j, oEnd);
+            boolean theirsSame = same(b, i, next, t, k, tEnd);
+            if (oursSame) {
+                out.write(theirs, ts[k], ts[tEnd]);
+            } else if (theirsSame || same(o, j, oEnd, t, k, tEnd)) {
+                out.write(ours, os[j], os[oEnd]);
+            } else {
+                conflict = true;
+                out.write(OURS_MARKER);
+                section(out, ours, os[j], os[oEnd]);
+                out.write(SPLIT_MARKER);
+                section(out, theirs, ts[k], ts[tEnd]);
+                out.write(END_MARKER);
+            }
+            i = next;
+            j = oEnd;
+            k = tEnd;
+        }
+        return new Result(out.toByteArray(), conflict);
+    }
+
+    /** Returns OURS and THEIRS, either of which may be null, as a single
+     *  conflict. */
+    private static Result conflict(ByteBuffer ours, ByteBuffer theirs) {
+        Output out = new Output(0);
+        out.write(OURS_MARKER);
+        if (ours != null) {
+            section(out, ours, 0, ours.limit());
+        }
+        out.write(SPLIT_MARKER);
+        if (theirs != null) {
+            section(out, theirs, 0, theirs.limit());
+        }
+        out.write(END_MARKER);
+        return new Result(out.toByteArray(), true);
+    }
+
+    /** Writes DATA[FROM..TO) to OUT, followed by a newline if it is not
+     *  empty and does not end with one, so that a marker after it starts a
+     *  line of its own. */
+    private static void section(Output out, ByteBuffer data, int from, int to) {
+        out.write(data, from, to);
+        if (to > from && data.get(to - 1) != '\n') {
+            out.write(NEWLINE);
+        }
+    }
+
+    /** True iff the lines X[XLO..XHI) are the lines Y[YLO..YHI). */
+    private static boolean same(int[] x, int xLo, int xHi, int[] y, int yLo, int yHi) {
+        return Arrays.equals(x, xLo, xHi, y, yLo, yHi);
+    }
+
+    /** True iff DATA holds a NUL byte, which text does not. */
+    private static boolean isBinary(ByteBuffer data) {
+        for (int i = 0; i < data.limit(); i++) {
+            if (data.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The merged contents, as they are built up. Bytes are copied into it
+     *  straight from the buffers being merged. */
+    private static class Output {
+        /** The contents so far, and room for more. */
+        private byte[] bytes;
+        /** Number of bytes written. */
+        private int size;
+
+        Output(int capacity) {
+            bytes = new byte[Math.max(capacity, 64)];
+        }
+
+        /** Appends DATA[FROM..TO). */
+        void write(ByteBuffer data, int from, int to) {
+            reserve(to - from);
+            data.get(from, bytes, size, to - from);
+            size += to - from;
+        }
+
+        /** Appends DATA. */
+        void write(byte[] data) {
+            reserve(data.length);
+            System.arraycopy(data, 0, bytes, size, data.length);
+            size += data.length;
+        }
+
+        /** Returns the contents written. */
+        byte[] toByteArray() {
+            return size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+        }
+
+        /** Makes room for N more bytes. */
+        private void reserve(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + n, 2 * bytes.length));
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package gitlet;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
 
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author TODO
@@ -11,82 +13,191 @@ public class Main {
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
      */
     public static void main(String[] args) throws IOException {
+        try {
+            run(args);
+        } catch (GitletException e) {
+            System.out.println(e.getMessage());
+            System.exit(0);
+        }
+    }
+
+    /** Commands that never change the repository's state. */
+    private static final Set<String> READERS = Set.of(
+            "log", "global-log", "find", "status", "merge-base", "diff", "serve");
+
+    /** True iff the command ARGS may change the repository, and so must
+     *  hold the WriteLock. */
+    static boolean writes(String[] args) {
+        return args.length > 0 && !READERS.contains(args[0]);
+    }
+
+    /** Runs the command ARGS, throwing a GitletException for any error
+     *  that is reported to the user. What a command changes is committed
+     *  to the Journal as one transaction once it succeeds, and dropped if
+     *  it fails. Used by main and by Server.
+     *
+     *  A command that writes holds the WriteLock throughout, waiting for
+     *  it if need be. One that only reads never waits: it takes the lock
+     *  just long enough to recover and migrate the repository if no writer
+     *  holds it, and otherwise leaves that to the writer. */
+    static void run(String[] args) throws IOException {
+        if (args.length == 0) {
+            throw Utils.error("Please enter a command.");
+        }
+        String firstArg = args[0];
+
+        if (firstArg.equals("init")) {
+            Repository.initCommand();
+            Journal.commit();
+            return;
+        }
 
+        if (!Repository.GITLET_DIR.exists()) {
+            throw Utils.error("Not in an initialized Gitlet directory.");
+        }
+        boolean writes = writes(args);
+        boolean locked;
+        if (writes) {
+            WriteLock.acquire();
+            locked = true;
+        } else {
+            locked = WriteLock.tryAcquire();
+        }
         try {
-            if (args.length == 0) {
-                throw Utils.error("Please enter a command.");
+            if (locked) {
+                Journal.recover();
+                ObjectStore.migrateLegacyBlobs();
+                Repository.migrateLegacyHead();
+                Refs.migrate();
+                Repository.migrateLegacyCommits();
+                Stage.migrateLegacy();
+                Journal.commit();
             }
-            String firstArg = args[0];
-
-            if (firstArg.equals("init")) {
-                Repository.initCommand();
-                System.exit(0);
+            if (locked && !writes) {
+                WriteLock.release();
+                locked = false;
             }
-
-            if (!Repository.GITLET_DIR.exists()) {
-                throw Utils.error("Not in an initialized Gitlet directory.");
+            dispatch(args);
+            if (writes) {
+                Journal.commit();
             }
+        } finally {
+            Journal.abort();
+            if (locked) {
+                WriteLock.release();
+            }
+        }
+    }
 
-            switch (firstArg) {
-                case "init":
-                    Repository.initCommand();
-                    break;
-                case "add":
-                    if (args.length < 2) {
-                        throw Utils.error("Filename needed.");
-                    }
-                    Repository.add(args[1]);
-                    break;
-                case "commit":
-                    if (args.length != 2 || args[1].equals("")) {
-                        throw Utils.error("Please enter a commit message.");
-                    }
-
-                    Commit parentCommit = Utils.readObject(Repository.HEAD, Commit.class);
-                    Repository.generalCommit(args[1], Utils.sha1(Utils.serialize(parentCommit)), null);
-                    break;
-                case "rm":
-                    if (args.length < 2) {
-                        throw Utils.error("Filename needed.");
-                    }
-                    Repository.remove(args[1]);
-                    break;
-                case "log":
-                    Repository.log(false);
-                    break;
-                case "global-log":
-                    Repository.log(true);
-                    break;
-                case "find":
-                    if (args.length != 2) {
-                        throw Utils.error("Please enter a message.");
-                    }
-                    Repository.find(args[1]);
-                    break;
-                case "status":
-                    Repository.status();
-                    break;
-                case "checkout":
-                    Repository.checkout(args);
-                    break;
-                case "branch":
-                    Repository.branch(args[1]);
-                    break;
-                case "rm-branch":
-                    Repository.rmBranch(args[1]);
-                    break;
-                case "reset":
-                    Repository.reset(args[1]);
-                    break;
-                case "merge":
-                    Repository.merge(args[1]);
+    /** Runs the command ARGS in an initialized repository. Used by run and
+     *  by Batch. */
+    static void dispatch(String[] args) throws IOException {
+        switch (args[0]) {
+            case "init":
+                Repository.initCommand();
+                break;
+            case "add":
+                if (args.length < 2) {
+                    throw Utils.error("Filename needed.");
+                }
+                Repository.add(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "commit":
+                if (args.length != 2 || args[1].equals("")) {
+                    throw Utils.error("Please enter a commit message.");
+                }
+                Repository.generalCommit(args[1], Repository.headId(), null);
+                break;
+            case "rm":
+                if (args.length < 2) {
+                    throw Utils.error("Filename needed.");
+                }
+                Repository.remove(args[1]);
+                break;
+            case "log":
+                Repository.log(false);
+                break;
+            case "global-log":
+                Repository.log(true);
+                break;
+            case "find":
+                if (args.length == 3 && args[1].equals("--words")) {
+                    Repository.find(args[2], true);
                     break;
-                default:
-                    throw Utils.error("No command with that name exists.");
-            }
-        } catch (GitletException e) {
-            System.out.println(e.getMessage());
-            System.exit(0);
+                }
+                if (args.length != 2) {
+                    throw Utils.error("Please enter a message.");
+                }
+                Repository.find(args[1], false);
+                break;
+            case "status":
+                Repository.status();
+                break;
+            case "checkout":
+                Repository.checkout(args);
+                break;
+            case "branch":
+                Repository.branch(args[1]);
+                break;
+            case "rm-branch":
+                Repository.rmBranch(args[1]);
+                break;
+            case "reset":
+                Repository.reset(args[1]);
+                break;
+            case "merge":
+                Repository.merge(args[1]);
+                break;
+            case "merge-base":
+                if (args.length == 4 && args[1].equals("--all")) {
+                    Repository.mergeBase(args[2], args[3], true);
+                } else if (args.length == 3) {
+                    Repository.mergeBase(args[1], args[2], false);
+                } else {
+                    throw Utils.error("Incorrect operands.");
+                }
+                break;
+            case "diff":
+                if (args.length != 3) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                Repository.diff(args[1], args[2]);
+                break;
+            case "repack":
+                Repository.repack();
+                break;
+            case "pack-refs":
+                if (args.length != 1) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                Repository.packRefs();
+                break;
+            case "gc":
+                if (args.length > 2 || args.length == 2 && !args[1].equals("--dry-run")) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                GarbageCollector.collect(args.length == 2);
+                break;
+            case "config":
+                if (args.length < 2 || args.length > 3) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                Repository.config(args[1], args.length == 3 ? args[2] : null);
+                break;
+            case "batch":
+                if (args.length > 2) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                Batch.run(args.length == 2 ? args[1] : null);
+                break;
+            case "serve":
+                if (args.length != 1) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                Server.serve();
+                break;
+            default:
+                throw Utils.error("No command with that name exists.");
         }
     }
 }
@@ -0,0 +1,232 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static gitlet.Utils.*;
+
+/** Writes blobs out to the working directory for checkout, reset and merge.
+ *
+ *  Every blob is first copied into a temporary file under .gitlet/tmp by a
+ *  fixed pool of checkout.workers threads (default: one per processor).
+ *  Only once all of them have been written, and no untracked file stands
+ *  where a directory or file must go, is the working directory touched:
+ *  the files to be removed and those to be replaced are moved aside into
+ *  .gitlet/tmp, which also clears the way for a path that changes between
+ *  file and directory, and the temporary files are renamed into place. If
+ *  any step fails, what was moved is moved back, so a failure part way
+ *  leaves the working directory as it was. With checkout.report set to
+ *  true, the number of files written per second is printed to stderr.
+ *
+ *  @author Jae Won Kim
+ */
+class Materializer {
+
+    /** Config key of the number of writer threads. */
+    static final String WORKERS_KEY = "checkout.workers";
+    /** Config key that turns on the files/sec report. */
+    static final String REPORT_KEY = "checkout.report";
+    /** Config key that makes checkout also rewrite files the two commits
+     *  share whose working copy no longer matches. */
+    static final String VERIFY_KEY = "checkout.verify";
+
+    /** Directory of the temporary files. */
+    static final File TMP = join(Repository.GITLET_DIR, "tmp");
+
+    /** Message for a working file in the way of a checkout or merge. */
+    static final String IN_THE_WAY = "There is an untracked file in the way; "
+            + "delete it, or add and commit it first.";
+
+    /** Deletes the working files in DELETES, along with any directories
+     *  that leaves empty, and writes the blob WRITES.get(NAME) to each
+     *  working file NAME. */
+    static void apply(Map<String, String> writes, Collection<String> deletes) {
+        long start = System.nanoTime();
+        List<String> names = new ArrayList<>(writes.keySet());
+        List<File> temps = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            temps.add(join(TMP, "checkout-" + i));
+        }
+        Set<String> gone = new HashSet<>(deletes);
+        for (String name : names) {
+            if (blocker(name, gone) != null) {
+                throw error(IN_THE_WAY);
+            }
+        }
+        if (!names.isEmpty()) {
+            TMP.mkdirs();
+            writeAll(names, writes, temps);
+        }
+
+        List<File> moved = new ArrayList<>();
+        List<File> backups = new ArrayList<>();
+        int written = 0;
+        String current = null;
+        try {
+            for (String name : deletes) {
+                current = name;
+                File file = join(Repository.CWD, name);
+                if (file.isFile()) {
+                    moveAside(file, moved, backups);
+                    prune(file.getParentFile());
+                }
+            }
+            for (; written < names.size(); written++) {
+                current = names.get(written);
+                File target = join(Repository.CWD, current);
+                if (target.isFile()) {
+                    moveAside(target, moved, backups);
+                } else if (target.isDirectory()) {
+                    clear(target);
+                }
+                target.getParentFile().mkdirs();
+                Files.move(temps.get(written).toPath(), target.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            for (int i = 0; i < written; i++) {
+                File target = join(Repository.CWD, names.get(i));
+                target.delete();
+                prune(target.getParentFile());
+            }
+            for (int i = moved.size() - 1; i >= 0; i--) {
+                moved.get(i).getParentFile().mkdirs();
+                backups.get(i).renameTo(moved.get(i));
+            }
+            for (File temp : temps) {
+                temp.delete();
+            }
+            throw error("Could not update %s; the working directory was left as it was.",
+                    current);
+        }
+        for (File backup : backups) {
+            backup.delete();
+        }
+        for (String name : names) {
+            StatCache.record(join(Repository.CWD, name), writes.get(name));
+        }
+        for (String name : deletes) {
+            StatCache.forget(join(Repository.CWD, name));
+        }
+
+        if ("true".equals(Config.get(REPORT_KEY))) {
+            long elapsed = Math.max(1, System.nanoTime() - start);
+            System.err.printf("Wrote %d files in %d ms (%.0f files/sec)%n", names.size(),
+                    elapsed / 1000000, names.size() * 1e9 / elapsed);
+        }
+    }
+
+    /** Returns the working file that would keep NAME from being written
+     *  once the files in GONE are removed: a file standing where one of the
+     *  directories of NAME must go, or a file under a directory standing
+     *  where NAME must go. Returns null if nothing is in the way. */
+    static String blocker(String name, Set<String> gone) {
+        for (int slash = name.indexOf('/'); slash >= 0; slash = name.indexOf('/', slash + 1)) {
+            String dir = name.substring(0, slash);
+            if (join(Repository.CWD, dir).isFile() && !gone.contains(dir)) {
+                return dir;
+            }
+        }
+        File target = join(Repository.CWD, name);
+        if (!target.isDirectory()) {
+            return null;
+        }
+        Path root = Repository.CWD.toPath();
+        try (Stream<Path> walk = Files.walk(target.toPath())) {
+            return walk.filter(Files::isRegularFile)
+                    .map(p -> root.relativize(p).toString().replace(File.separatorChar, '/'))
+                    .filter(p -> !gone.contains(p))
+                    .findFirst().orElse(null);
+        } catch (IOException e) {
+            return name;
+        }
+    }
+
+    /** Deletes DIR and its parents up to the working directory for as
+     *  long as they are empty. */
+    private static void prune(File dir) {
+        while (!dir.equals(Repository.CWD) && dir.delete()) {
+            dir = dir.getParentFile();
+        }
+    }
+
+    /** Deletes DIR, which holds nothing but empty directories. */
+    private static void clear(File dir) throws IOException {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                clear(child);
+            }
+        }
+        Files.delete(dir.toPath());
+    }
+
+    /** Moves FILE into TMP, noting it in MOVED and where it went in
+     *  BACKUPS. */
+    private static void moveAside(File file, List<File> moved, List<File> backups)
+            throws IOException {
+        File backup = join(TMP, "backup-" + backups.size());
+        TMP.mkdirs();
+        Files.move(file.toPath(), backup.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        moved.add(file);
+        backups.add(backup);
+    }
+
+    /** Copies the blob of each of NAMES in WRITES into the file at the same
+     *  position of TEMPS, in parallel. On failure, deletes all of TEMPS. */
+    private static void writeAll(List<String> names, Map<String, String> writes,
+                                 List<File> temps) {
+        int workers = Math.min(names.size(), Config.getInt(WORKERS_KEY,
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers));
+        Throwable failure = null;
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                String id = writes.get(names.get(i));
+                File temp = temps.get(i);
+                tasks.add(pool.submit(() -> ObjectStore.copyTo(id, temp)));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            failure = e;
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        } finally {
+            pool.shutdownNow();
+        }
+        if (failure == null) {
+            return;
+        }
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (File temp : temps) {
+            temp.delete();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        throw new IllegalArgumentException(failure.getMessage());
+    }
+}
@@ -0,0 +1,149 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** Finds the best common ancestors of two commits on the CommitGraph.
+ *
+ *  Starting from both commits, ancestors are visited in order of
+ *  decreasing generation number, each painted with the side(s) it is
+ *  reachable from. A commit reachable from both sides is a candidate, and
+ *  everything below it is painted stale, since no ancestor of a candidate
+ *  can be a better one. The walk stops as soon as only stale commits are
+ *  left to visit. Because a commit's generation exceeds that of all its
+ *  ancestors, every commit is visited after all of its descendants, so
+ *  each is settled in a single visit.
+ *
+ *  @author Jae Won Kim
+ */
+class MergeBase {
+
+    /** Paint flags. */
+    private static final int FROM_A = 1;
+    private static final int FROM_B = 2;
+    private static final int STALE = 4;
+    private static final int RESULT = 8;
+
+    /** Returns the ids of the best common ancestors of the commits A and B:
+     *  the common ancestors that are not ancestors of another common
+     *  ancestor. The most recent comes first. */
+    static List<String> all(String a, String b) {
+        CommitGraph graph = CommitGraph.containing(a, b);
+        List<Integer> bases = removeRedundant(graph,
+                paint(graph, graph.indexOf(a), graph.indexOf(b)));
+        List<String> result = new ArrayList<>();
+        for (int base : bases) {
+            result.add(graph.idAt(base));
+        }
+        return result;
+    }
+
+    /** Returns the id of the best common ancestor of A and B, or null if
+     *  they have none. */
+    static String best(String a, String b) {
+        List<String> bases = all(a, b);
+        return bases.isEmpty() ? null : bases.get(0);
+    }
+
+    /** Paints the ancestors of A and B and returns the common ancestors
+     *  found, which may include ancestors of one another. */
+    private static List<Integer> paint(CommitGraph graph, int a, int b) {
+        List<Integer> result = new ArrayList<>();
+        if (a == b) {
+            result.add(a);
+            return result;
+        }
+        int[] flags = new int[graph.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((x, y) -> {
+            int cmp = Integer.compare(graph.generation(y), graph.generation(x));
+            return cmp != 0 ? cmp : Long.compare(graph.timestamp(y), graph.timestamp(x));
+        });
+        flags[a] |= FROM_A;
+        flags[b] |= FROM_B;
+        queue.add(a);
+        queue.add(b);
+        int active = 2;
+
+        while (active > 0) {
+            int commit = queue.poll();
+            int paint = flags[commit] & (FROM_A | FROM_B | STALE);
+            if ((paint & STALE) == 0) {
+                active--;
+            }
+            if (paint == (FROM_A | FROM_B)) {
+                if ((flags[commit] & RESULT) == 0) {
+                    flags[commit] |= RESULT;
+                    result.add(commit);
+                }
+                paint |= STALE;
+            }
+            for (int parent : new int[] {graph.parent1(commit), graph.parent2(commit)}) {
+                if (parent == CommitGraph.NONE || (flags[parent] & paint) == paint) {
+                    continue;
+                }
+                boolean wasQueued = flags[parent] != 0;
+                boolean wasActive = wasQueued && (flags[parent] & STALE) == 0;
+                flags[parent] |= paint;
+                boolean isActive = (flags[parent] & STALE) == 0;
+                if (!wasQueued) {
+                    queue.add(parent);
+                    if (isActive) {
+                        active++;
+                    }
+                } else if (wasActive && !isActive) {
+                    active--;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns CANDIDATES without those that are ancestors of another
+     *  candidate, ordered by decreasing generation and timestamp. */
+    private static List<Integer> removeRedundant(CommitGraph graph, List<Integer> candidates) {
+        candidates.sort((x, y) -> {
+            int cmp = Integer.compare(graph.generation(y), graph.generation(x));
+            return cmp != 0 ? cmp : Long.compare(graph.timestamp(y), graph.timestamp(x));
+        });
+        List<Integer> result = new ArrayList<>();
+        for (int candidate : candidates) {
+            boolean redundant = false;
+            for (int other : result) {
+                if (reaches(graph, other, candidate)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    /** True iff TARGET is an ancestor of FROM. The walk never goes below
+     *  the generation of TARGET. */
+    private static boolean reaches(CommitGraph graph, int from, int target) {
+        int floor = graph.generation(target);
+        boolean[] seen = new boolean[graph.size()];
+        ArrayList<Integer> stack = new ArrayList<>();
+        stack.add(from);
+        while (!stack.isEmpty()) {
+            int commit = stack.remove(stack.size() - 1);
+            if (commit == target) {
+                return true;
+            }
+            if (seen[commit] || graph.generation(commit) <= floor) {
+                continue;
+            }
+            seen[commit] = true;
+            for (int parent : new int[] {graph.parent1(commit), graph.parent2(commit)}) {
+                if (parent != CommitGraph.NONE) {
+                    stack.add(parent);
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,221 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+/** Index from commit messages to the commits that carry them, kept under
+ *  .gitlet/messages so that find never has to read commit files.
+ *
+ *  messages/exact/<sha1 of message> lists, one per line, the ids of the
+ *  commits with exactly that message. messages/words/<word> lists the
+ *  commits whose message contains the word, where words are the runs of
+ *  letters and digits of a message, lower-cased. Both are appended to
+ *  through the Journal, in the transaction of the command that writes each
+ *  commit, so ids appear in the order they were committed. messages/count
+ *  holds the number of commits indexed, and is written with them.
+ *
+ *  A writer that finds the index missing or behind the CommitGraph builds
+ *  it again. Commands that only read hold no lock and so never write it:
+ *  they use it only if it covers every commit in the graph, and otherwise
+ *  read the messages of the commits themselves.
+ *
+ *  @author Jae Won Kim
+ */
+class MessageIndex {
+
+    /** The index directory. */
+    static final File MESSAGES = join(Repository.GITLET_DIR, "messages");
+    /** Postings of whole messages. */
+    private static final File EXACT = join(MESSAGES, "exact");
+    /** Postings of words. */
+    private static final File WORDS = join(MESSAGES, "words");
+    /** Number of commits indexed. */
+    private static final File COUNT = join(MESSAGES, "count");
+
+    /** Longest word that is indexed; longer ones are cut to this length. */
+    private static final int MAX_WORD = 64;
+
+    /** Records the newly written COMMIT, which the CommitGraph holds. */
+    static void add(Commit commit) {
+        int size = CommitGraph.get().size();
+        int count = count();
+        if (count == size) {
+            return;
+        }
+        if (count != size - 1) {
+            rebuild();
+            return;
+        }
+        byte[] line = (commit.getId() + "\n").getBytes(StandardCharsets.UTF_8);
+        for (File file : files(commit.getMessage())) {
+            Journal.append(file, Journal.length(file), line);
+        }
+        writeCount(size);
+    }
+
+    /** Returns the ids of the commits whose message is MESSAGE. */
+    static List<String> exact(String message) {
+        List<List<String>> result = new ArrayList<>();
+        Journal.snapshot(() -> {
+            result.clear();
+            if (count() == CommitGraph.get().size()) {
+                result.add(postings(join(EXACT, sha1(message))));
+            } else {
+                result.add(scan(text -> text.equals(message)));
+            }
+        }, COUNT);
+        return result.get(0);
+    }
+
+    /** Returns the ids of the commits whose message contains every word in
+     *  the text QUERY. */
+    static List<String> words(String query) {
+        Set<String> words = tokenize(query);
+        if (words.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<List<String>> result = new ArrayList<>();
+        Journal.snapshot(() -> {
+            result.clear();
+            if (count() == CommitGraph.get().size()) {
+                result.add(intersect(words));
+            } else {
+                result.add(scan(text -> tokenize(text).containsAll(words)));
+            }
+        }, COUNT);
+        return result.get(0);
+    }
+
+    /** Builds the index from the commit files, replacing any old one, when
+     *  the Journal commits. */
+    static void rebuild() {
+        for (File dir : new File[] {EXACT, WORDS}) {
+            List<String> names = plainFilenamesIn(dir);
+            for (String name : names == null ? Collections.<String>emptyList() : names) {
+                Journal.delete(join(dir, name));
+            }
+        }
+        Map<File, ByteArrayOutputStream> postings = new LinkedHashMap<>();
+        CommitGraph graph = CommitGraph.get();
+        for (int i : byTime(graph)) {
+            String id = graph.idAt(i);
+            byte[] line = (id + "\n").getBytes(StandardCharsets.UTF_8);
+            for (File file : files(Repository.readCommitHeader(id).getMessage())) {
+                postings.computeIfAbsent(file, f -> new ByteArrayOutputStream())
+                        .write(line, 0, line.length);
+            }
+        }
+        for (Map.Entry<File, ByteArrayOutputStream> entry : postings.entrySet()) {
+            Journal.write(entry.getKey(), entry.getValue().toByteArray());
+        }
+        writeCount(graph.size());
+    }
+
+    /** Returns the number of commits indexed, or -1 if there is no index. */
+    private static int count() {
+        byte[] contents = Journal.contents(COUNT);
+        if (contents == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(new String(contents, StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Sets the number of commits indexed to COUNT. */
+    private static void writeCount(int count) {
+        Journal.write(COUNT, (count + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Returns the postings a commit with MESSAGE is listed in. */
+    private static List<File> files(String message) {
+        List<File> files = new ArrayList<>();
+        files.add(join(EXACT, sha1(message)));
+        for (String word : tokenize(message)) {
+            files.add(join(WORDS, word));
+        }
+        return files;
+    }
+
+    /** Returns the commits listed under every one of WORDS. */
+    private static List<String> intersect(Set<String> words) {
+        List<String> result = null;
+        for (String word : words) {
+            List<String> ids = postings(join(WORDS, word));
+            if (result == null) {
+                result = ids;
+            } else {
+                result.retainAll(new LinkedHashSet<>(ids));
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /** Returns, in the order they were made, the commits whose message
+     *  MATCHES, read from the commit files. */
+    private static List<String> scan(Predicate<String> matches) {
+        CommitGraph graph = CommitGraph.get();
+        List<String> ids = new ArrayList<>();
+        for (int i : byTime(graph)) {
+            String id = graph.idAt(i);
+            if (matches.test(Repository.readCommitHeader(id).getMessage())) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /** Returns the positions of the commits in GRAPH by timestamp. */
+    private static List<Integer> byTime(CommitGraph graph) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < graph.size(); i++) {
+            order.add(i);
+        }
+        order.sort((x, y) -> Long.compare(graph.timestamp(x), graph.timestamp(y)));
+        return order;
+    }
+
+    /** Returns the ids listed in FILE, without repeats, or none if FILE does
+     *  not exist. */
+    private static List<String> postings(File file) {
+        byte[] contents = Journal.contents(file);
+        if (contents == null) {
+            return new ArrayList<>();
+        }
+        Set<String> ids = new LinkedHashSet<>();
+        for (String line : new String(contents, StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isEmpty()) {
+                ids.add(line);
+            }
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /** Returns the distinct words of TEXT. */
+    private static Set<String> tokenize(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word.length() > MAX_WORD ? word.substring(0, MAX_WORD) : word);
+            }
+        }
+        return words;
+    }
+}
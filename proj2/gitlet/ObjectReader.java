@@ -0,0 +1,107 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Reads loose object and pack files through FileChannel.map rather than
+ *  copying them onto the heap. Files are mapped in windows of WINDOW_SIZE
+ *  bytes, and a range that straddles two windows in a region of its own;
+ *  loose objects of up to SMALL_SIZE bytes are not worth a mapping and are
+ *  read onto the heap in one read instead. The most recently used regions stay
+ *  mapped, up to MAX_REGIONS of them and MAX_MAPPED bytes in all; older
+ *  ones are dropped, and unmapped once nothing uses them.
+ *
+ *  Every view handed out is a read-only buffer of its own over the shared
+ *  mapping, so it may be used from any thread. Object and pack files never
+ *  change once written, so a mapping stays valid until clear.
+ *
+ *  @author Jae Won Kim
+ */
+class ObjectReader {
+
+    /** Size of the windows files are mapped in. */
+    static final long WINDOW_SIZE = 32L << 20;
+    /** Largest loose object read onto the heap rather than mapped. */
+    static final int SMALL_SIZE = 256 << 10;
+    /** Most regions, and most bytes, kept mapped at once. */
+    static final int MAX_REGIONS = 256;
+    static final long MAX_MAPPED = 512L << 20;
+
+    /** Mapped regions, keyed by file and start, least recently used first. */
+    private static final LinkedHashMap<String, MappedByteBuffer> REGIONS =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** Total size of REGIONS. */
+    private static long mapped;
+
+    /** Returns the whole of FILE, which must be under 2 GiB: its bytes
+     *  read onto the heap if there are no more than SMALL_SIZE of them,
+     *  otherwise a read-only view of its mapping. */
+    static ByteBuffer contents(File file) {
+        long size = file.length();
+        if (size > SMALL_SIZE) {
+            return view(file, 0, (int) size);
+        }
+        try {
+            return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Returns a read-only view of LENGTH bytes of FILE from POSITION, or
+     *  of fewer if FILE ends sooner. */
+    static ByteBuffer view(File file, long position, int length) {
+        long start = position - position % WINDOW_SIZE;
+        MappedByteBuffer region = region(file, start, WINDOW_SIZE);
+        if (position + length > start + region.capacity()
+                && region.capacity() == WINDOW_SIZE) {
+            start = position;
+            region = region(file, start, length);
+        }
+        int from = (int) (position - start);
+        int to = Math.min(region.capacity(), from + length);
+        return region.slice(from, to - from).asReadOnlyBuffer();
+    }
+
+    /** Drops every mapping, as after the files it maps are deleted. */
+    static synchronized void clear() {
+        REGIONS.clear();
+        mapped = 0;
+    }
+
+    /** Returns the mapping of up to SIZE bytes of FILE from START, mapping
+     *  it if need be. */
+    private static synchronized MappedByteBuffer region(File file, long start, long size) {
+        String key = file.getPath() + "@" + start + "+" + size;
+        MappedByteBuffer region = REGIONS.get(key);
+        if (region != null) {
+            return region;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = Math.min(size, channel.size() - start);
+            region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(0, length));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        REGIONS.put(key, region);
+        mapped += region.capacity();
+        Iterator<Map.Entry<String, MappedByteBuffer>> eldest = REGIONS.entrySet().iterator();
+        while (REGIONS.size() > MAX_REGIONS || mapped > MAX_MAPPED && REGIONS.size() > 1) {
+            Map.Entry<String, MappedByteBuffer> entry = eldest.next();
+            if (entry.getValue() == region) {
+                break;
+            }
+            mapped -= entry.getValue().capacity();
+            eldest.remove();
+        }
+        return region;
+    }
+}
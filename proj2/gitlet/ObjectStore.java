@@ -0,0 +1,493 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/** Content-addressed store for blobs. New objects live in their own file
+ *  under .gitlet/objects, fanned out by the first two hex digits of its id
+ *  (objects/ab/cdef...), so commands only touch the objects they use.
+ *  Objects that have been repacked are found in a Pack instead; readers do
+ *  not need to know which.
+ *
+ *  Stored files are deflated at the level set by core.compression in the
+ *  Config and start with MAGIC. Files without it were written before
+ *  compression existed and are read as they are.
+ *
+ *  Objects are read through ObjectReader's mappings of their files, so
+ *  their stored bytes are never copied onto the heap: copyTo inflates them
+ *  a window at a time straight into the file being written, and buffer
+ *  hands out views. Small loose objects are simply read.
+ *
+ *  @author Jae Won Kim
+ */
+class ObjectStore {
+
+    /** The objects directory. */
+    static final File OBJECTS = join(Repository.GITLET_DIR, "objects");
+
+    /** Size of the buffer files are streamed through, so hashing and storing
+     *  a file never holds more than this much of it in memory. */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Config key of the deflate level, 0 (store) to 9 (smallest). */
+    static final String LEVEL_KEY = "core.compression";
+
+    /** First bytes of every compressed file. */
+    private static final byte[] MAGIC = {0, 'G', 'L', 'Z'};
+
+    /** Each thread's direct buffer that copyTo inflates objects through. */
+    private static final ThreadLocal<ByteBuffer> CHUNK =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(CHUNK_SIZE));
+
+    /** Returns the file holding the object with the given ID. */
+    static File objectFile(String id) {
+        return join(OBJECTS, id.substring(0, 2), id.substring(2));
+    }
+
+    /** True iff an object with ID is stored, loose or packed. */
+    static boolean contains(String id) {
+        return objectFile(id).isFile() || Pack.has(id);
+    }
+
+    /** Stores CONTENTS under ID unless it is already present. The object is
+     *  written to a temporary file first and renamed into place, so a
+     *  half-written object is never visible under its id. */
+    static void write(String id, byte[] contents) {
+        File file = objectFile(id);
+        if (contains(id)) {
+            return;
+        }
+        file.getParentFile().mkdirs();
+        File temp = join(file.getParentFile(), file.getName() + ".tmp");
+        writeCompressed(temp, contents);
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            temp.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Journal.stored(file);
+    }
+
+    /** Returns the blob id of the file NAME whose contents are in FILE: the
+     *  SHA-1 of NAME followed by the raw bytes of FILE, streamed in chunks. */
+    static String hash(String name, File file) {
+        MessageDigest md = newDigest(name);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                md.update(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return toHex(md.digest());
+    }
+
+    /** Stores the contents of FILE as the blob for NAME, hashing and
+     *  compressing it in a single streaming pass. Returns the blob id. */
+    static String writeFile(String name, File file) {
+        MessageDigest md = newDigest(name);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        OBJECTS.mkdirs();
+        File temp;
+        try {
+            temp = File.createTempFile("blob", ".tmp", OBJECTS);
+            try (InputStream in = Files.newInputStream(file.toPath());
+                 OutputStream out = compressedOutput(temp)) {
+                for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                    md.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        String id = toHex(md.digest());
+        File target = objectFile(id);
+        try {
+            if (contains(id)) {
+                temp.delete();
+            } else {
+                target.getParentFile().mkdirs();
+                Files.move(temp.toPath(), target.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Journal.stored(target);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return id;
+    }
+
+    /** Writes the contents of the object with ID to DEST. The object is
+     *  read through its mapping a window at a time and inflated a chunk at
+     *  a time straight into DEST, so it is never held on the heap whole,
+     *  however large it is. A miss is retried as described at load. */
+    static void copyTo(String id, File dest) {
+        if (!copy(id, dest)) {
+            Pack.invalidate();
+            if (!copy(id, dest)) {
+                throw error("Missing object %s.", id);
+            }
+        }
+    }
+
+    /** Writes the contents of the object with ID to DEST, as for copyTo,
+     *  and returns true, or returns false if it is neither loose nor in a
+     *  known pack. */
+    private static boolean copy(String id, File dest) {
+        File file = objectFile(id);
+        try (FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (!file.isFile()) {
+                return Pack.copyTo(id, out);
+            }
+            long size = file.length();
+            long position = isCompressed(ObjectReader.view(file, 0, MAGIC.length))
+                    ? MAGIC.length : 0;
+            Inflater inflater = position > 0 ? new Inflater() : null;
+            try {
+                while (position < size) {
+                    long end = Math.min(size, position - position % ObjectReader.WINDOW_SIZE
+                            + ObjectReader.WINDOW_SIZE);
+                    ByteBuffer data = ObjectReader.view(file, position, (int) (end - position));
+                    if (inflater == null) {
+                        while (data.hasRemaining()) {
+                            out.write(data);
+                        }
+                    } else {
+                        inflater.setInput(data);
+                        drain(inflater, out);
+                    }
+                    position = end;
+                }
+                if (inflater != null && !inflater.finished()) {
+                    throw new DataFormatException("truncated object");
+                }
+            } finally {
+                if (inflater != null) {
+                    inflater.end();
+                }
+            }
+            return true;
+        } catch (DataFormatException e) {
+            dest.delete();
+            throw error("Corrupt object %s.", id);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            if (file.exists()) {
+                throw e;
+            }
+            return false;
+        }
+    }
+
+    /** Returns the contents of the object with ID as a read-only buffer:
+     *  its stored bytes if it is stored as it is, otherwise the object
+     *  inflated from them. */
+    static ByteBuffer buffer(String id) {
+        return load(id).asReadOnlyBuffer();
+    }
+
+    /** Returns the contents of the object with ID. */
+    static byte[] read(String id) {
+        return toArray(load(id));
+    }
+
+    /** Returns the contents of the object with ID, as for buffer. Commands
+     *  that only read run beside a repack or gc, which may move the object
+     *  from where they looked into a pack they have not loaded, so a miss
+     *  is retried once with the packs read again. */
+    private static ByteBuffer load(String id) {
+        ByteBuffer data = find(id);
+        if (data == null) {
+            Pack.invalidate();
+            data = find(id);
+        }
+        if (data == null) {
+            throw error("Missing object %s.", id);
+        }
+        return data;
+    }
+
+    /** Returns the contents of the object with ID, as for buffer, or null
+     *  if it is neither loose nor in a known pack. */
+    private static ByteBuffer find(String id) {
+        File file = objectFile(id);
+        if (!file.isFile()) {
+            return Pack.buffer(id);
+        }
+        if (file.length() > Integer.MAX_VALUE) {
+            throw error("Object %s is too large to read whole.", id);
+        }
+        ByteBuffer data;
+        try {
+            data = ObjectReader.contents(file);
+        } catch (IllegalArgumentException e) {
+            if (file.exists()) {
+                throw e;
+            }
+            return null;
+        }
+        if (!isCompressed(data)) {
+            return data;
+        }
+        try {
+            return inflate(data.slice(MAGIC.length, data.remaining() - MAGIC.length), -1);
+        } catch (DataFormatException e) {
+            throw error("Corrupt object %s.", id);
+        }
+    }
+
+    /** Returns the remaining bytes of BUFFER, without copying them if they
+     *  are the whole of its backing array. */
+    static byte[] toArray(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(buffer.position(), result);
+        return result;
+    }
+
+    /** Writes CONTENTS to FILE, compressed. */
+    static void writeCompressed(File file, byte[] contents) {
+        try (OutputStream out = compressedOutput(file)) {
+            out.write(contents);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Returns the contents of FILE, which may or may not be compressed.
+     *  FILE is named by the id of what it holds. */
+    static byte[] readCompressed(File file) {
+        byte[] data = readContents(file);
+        if (!isCompressed(data)) {
+            return data;
+        }
+        try {
+            return inflate(data, MAGIC.length, data.length - MAGIC.length);
+        } catch (DataFormatException e) {
+            throw error("Corrupt object %s.", file.getName());
+        }
+    }
+
+    /** Returns the LEN bytes of DATA starting at START, deflated. */
+    static byte[] deflate(byte[] data, int start, int len) {
+        Deflater deflater = new Deflater(level());
+        deflater.setInput(data, start, len);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + 64);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /** Returns the result of inflating the LEN bytes of DATA starting at
+     *  START. */
+    static byte[] inflate(byte[] data, int start, int len) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data, start, len);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len * 3);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("truncated object");
+                }
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns the result of inflating the remaining bytes of IN, which
+     *  come to SIZE bytes, or to an unknown number if SIZE is negative. */
+    static ByteBuffer inflate(ByteBuffer in, int size) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(in);
+        ByteBuffer out = ByteBuffer.allocate(size >= 0 ? size : in.remaining() * 3 + 64);
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(out);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("truncated object");
+                } else if (n == 0 && !out.hasRemaining() && !inflater.finished()) {
+                    out = ByteBuffer.allocate(out.capacity() * 2).put(out.flip());
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        return out.flip();
+    }
+
+    /** Inflates the remaining bytes of IN into OUT, a chunk at a time. */
+    static void inflate(ByteBuffer in, WritableByteChannel out)
+            throws IOException, DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(in);
+        try {
+            drain(inflater, out);
+            if (!inflater.finished()) {
+                throw new DataFormatException("truncated object");
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Inflates what INFLATER has been given into OUT, a chunk at a time,
+     *  until it is finished or needs more input. */
+    private static void drain(Inflater inflater, WritableByteChannel out)
+            throws IOException, DataFormatException {
+        ByteBuffer chunk = CHUNK.get();
+        while (!inflater.finished()) {
+            int n = inflater.inflate(chunk.clear());
+            if (n == 0 && inflater.needsDictionary()) {
+                throw new DataFormatException("needs a dictionary");
+            } else if (n == 0 && inflater.needsInput()) {
+                return;
+            }
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                out.write(chunk);
+            }
+        }
+    }
+
+    /** Returns the configured compression level. */
+    static int level() {
+        int level = Config.getInt(LEVEL_KEY, Deflater.DEFAULT_COMPRESSION);
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw error("Invalid value for %s: %d", LEVEL_KEY, level);
+        }
+        return level;
+    }
+
+    /** Returns a stream that writes compressed data to FILE. */
+    private static OutputStream compressedOutput(File file) throws IOException {
+        OutputStream out = Files.newOutputStream(file.toPath());
+        out.write(MAGIC);
+        return new DeflaterOutputStream(out, new Deflater(level()), CHUNK_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                def.end();
+            }
+        };
+    }
+
+    /** Returns a stream of the contents of FILE, inflating them if FILE is
+     *  compressed. */
+    static InputStream compressedInput(File file) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(
+                Files.newInputStream(file.toPath()), CHUNK_SIZE);
+        in.mark(MAGIC.length);
+        byte[] head = in.readNBytes(MAGIC.length);
+        if (isCompressed(head)) {
+            return new InflaterInputStream(in, new Inflater(), CHUNK_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inf.end();
+                }
+            };
+        }
+        in.reset();
+        return in;
+    }
+
+    /** True iff DATA starts with MAGIC. */
+    private static boolean isCompressed(byte[] data) {
+        return data.length >= MAGIC.length
+                && Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /** True iff the remaining bytes of DATA start with MAGIC. */
+    private static boolean isCompressed(ByteBuffer data) {
+        return data.remaining() >= MAGIC.length
+                && data.slice(data.position(), MAGIC.length).equals(ByteBuffer.wrap(MAGIC));
+    }
+
+    /** Moves the blobs of a repository that still keeps them all in the single
+     *  serialized map at Repository.BLOB into this store, and deletes the map
+     *  when the Journal commits. */
+    @SuppressWarnings("unchecked")
+    static void migrateLegacyBlobs() {
+        if (!Repository.BLOB.isFile()) {
+            return;
+        }
+        HashMap<String, byte[]> blobHash =
+                (HashMap<String, byte[]>) readObject(Repository.BLOB, HashMap.class);
+        for (Map.Entry<String, byte[]> entry : blobHash.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+        Journal.delete(Repository.BLOB);
+    }
+
+    /** Returns a SHA-1 digest already fed with the UTF-8 bytes of NAME. */
+    private static MessageDigest newDigest(String name) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(name.getBytes(StandardCharsets.UTF_8));
+            return md;
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Returns the 20-byte binary form of the hexadecimal ID. */
+    static byte[] toBinary(String id) {
+        byte[] result = new byte[id.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(id.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    /** Returns DIGEST as a lower-case hexadecimal numeral. */
+    static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = Character.forDigit((digest[i] >> 4) & 0xf, 16);
+            hex[2 * i + 1] = Character.forDigit(digest[i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,472 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+
+import static gitlet.Utils.*;
+
+/** A pack of objects in .gitlet/objects/pack. The .pack file holds the
+ *  objects back to back, each either whole or as a Delta against another
+ *  object of the same pack, and deflated since version 2. The .idx file
+ *  next to it lists the ids of the pack in sorted order, behind a 256-entry
+ *  fan-out table on the first byte of the id, together with the offset of
+ *  each object in the pack.
+ *
+ *  Packs are written outside the Journal, which only covers small state
+ *  files, but in an order that survives a crash at any point: a new pack
+ *  is synced into place before the packs and loose objects it replaces
+ *  are deleted, so every object is always on disk in at least one place.
+ *
+ *  @author Jae Won Kim
+ */
+class Pack {
+
+    /** Directory holding the packs. */
+    static final File PACK_DIR = join(ObjectStore.OBJECTS, "pack");
+
+    /** Longest chain of deltas an object may sit at the end of. */
+    static final int MAX_DEPTH = 10;
+    /** Objects larger than this are left loose by repack. */
+    static final long MAX_PACKED_SIZE = 16 * 1024 * 1024;
+
+    /** Magic numbers and format version of pack and index files. */
+    private static final int PACK_MAGIC = 0x4750434b;
+    private static final int INDEX_MAGIC = 0x47494458;
+    private static final int VERSION = 2;
+
+    /** Entry types. */
+    private static final int WHOLE = 1;
+    private static final int DELTA = 2;
+
+    /** Length of a binary object id. */
+    private static final int ID_BYTES = 20;
+    /** Longest entry header: type, size, stored size and base id. */
+    private static final int HEADER_BYTES = 1 + 2 * Integer.BYTES + ID_BYTES;
+
+    /** The packs of this repository, loaded on first use. */
+    private static List<Pack> packs;
+
+    /** The .pack file. */
+    private final File packFile;
+    /** Format version; entries are deflated from version 2 on. */
+    private final int version;
+    /** Cumulative number of ids whose first byte is at most i. */
+    private final int[] fanout = new int[256];
+    /** The sorted binary ids, ID_BYTES apiece. */
+    private final byte[] ids;
+    /** Offset in packFile of each object, parallel to ids. */
+    private final long[] offsets;
+
+    /** Loads the index of the pack PACKFILE. */
+    private Pack(File packFile) {
+        this.packFile = packFile;
+        File indexFile = indexFileOf(packFile);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(indexFile.toPath())))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                throw new IllegalArgumentException("bad pack index " + indexFile);
+            }
+            version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IllegalArgumentException("bad pack index " + indexFile);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < fanout.length; i++) {
+                fanout[i] = in.readInt();
+            }
+            ids = new byte[count * ID_BYTES];
+            in.readFully(ids);
+            offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = in.readLong();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** True iff some pack holds the object ID. */
+    static boolean has(String id) {
+        return find(id) != null;
+    }
+
+    /** Returns the contents of the packed object ID, or null if no pack
+     *  loaded holds it or its pack has since been deleted. */
+    static ByteBuffer buffer(String id) {
+        Pack pack = find(id);
+        if (pack == null) {
+            return null;
+        }
+        try {
+            return pack.readEntry(id);
+        } catch (IllegalArgumentException e) {
+            if (pack.packFile.exists()) {
+                throw e;
+            }
+            return null;
+        }
+    }
+
+    /** Writes the contents of the packed object ID to OUT and returns
+     *  true, or returns false as buffer returns null. A whole entry is
+     *  inflated straight from the mapped pack into OUT. */
+    static boolean copyTo(String id, WritableByteChannel out)
+            throws IOException, DataFormatException {
+        Pack pack = find(id);
+        if (pack == null) {
+            return false;
+        }
+        try {
+            Entry entry = pack.entryAt(pack.offsetOf(id));
+            if (entry.type() == WHOLE && pack.version > 1) {
+                ObjectStore.inflate(entry.data(), out);
+            } else {
+                ByteBuffer contents = pack.readEntry(id);
+                while (contents.hasRemaining()) {
+                    out.write(contents);
+                }
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            if (pack.packFile.exists()) {
+                throw e;
+            }
+            return false;
+        }
+    }
+
+    /** Returns the ids of every packed object. */
+    static Set<String> allIds() {
+        Set<String> result = new LinkedHashSet<>();
+        for (Pack pack : packs()) {
+            for (int i = 0; i < pack.offsets.length; i++) {
+                result.add(ObjectStore.toHex(
+                        Arrays.copyOfRange(pack.ids, i * ID_BYTES, (i + 1) * ID_BYTES)));
+            }
+        }
+        return result;
+    }
+
+    /** Returns the last-modified time of the pack holding the object ID. */
+    static long modified(String id) {
+        return find(id).packFile.lastModified();
+    }
+
+    /** Returns the number of bytes the entry of the packed object ID takes
+     *  up in its pack. */
+    static long entrySize(String id) {
+        Pack pack = find(id);
+        return pack.entryAt(pack.offsetOf(id)).length();
+    }
+
+    /** Packs every object that is loose or in an existing pack, except
+     *  those in GARBAGE, into a single new pack, then removes the old packs
+     *  and the loose copies. HISTORIES
+     *  lists, for each tracked path, the blob ids it has had from newest to
+     *  oldest; each version is stored as a delta against the next newer one
+     *  when that saves at least half its size, with chains bounded by
+     *  MAX_DEPTH.
+     *
+     *  The pack and its index are written to temporary files, synced,
+     *  renamed into place, index first, and the directory synced, so the
+     *  new pack is on disk before anything it replaces is deleted. */
+    static void repack(List<List<String>> histories, Set<String> garbage) {
+        Set<String> objects = new LinkedHashSet<>();
+        for (List<String> history : histories) {
+            objects.addAll(history);
+        }
+        objects.addAll(looseIds());
+        objects.addAll(allIds());
+        objects.removeAll(garbage);
+
+        if (PACK_DIR.mkdirs()) {
+            Journal.sync(ObjectStore.OBJECTS);
+        }
+        File temp = join(PACK_DIR, "pack.tmp");
+        File indexTemp = join(PACK_DIR, "index.tmp");
+        HashMap<String, Long> written = new HashMap<>();
+        HashMap<String, Integer> depths = new HashMap<>();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+            out.writeInt(PACK_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(0);
+            long[] position = {12};
+            for (List<String> history : histories) {
+                String base = null;
+                byte[] baseContents = null;
+                for (String id : history) {
+                    if (written.containsKey(id) || garbage.contains(id) || !packable(id)) {
+                        base = null;
+                        continue;
+                    }
+                    byte[] contents = ObjectStore.read(id);
+                    byte[] delta = null;
+                    if (base != null && depths.get(base) < MAX_DEPTH) {
+                        delta = Delta.create(baseContents, contents);
+                        if (delta.length > contents.length / 2) {
+                            delta = null;
+                        }
+                    }
+                    written.put(id, position[0]);
+                    if (delta == null) {
+                        writeEntry(out, position, WHOLE, null, contents);
+                        depths.put(id, 0);
+                    } else {
+                        writeEntry(out, position, DELTA, base, delta);
+                        depths.put(id, depths.get(base) + 1);
+                    }
+                    base = id;
+                    baseContents = contents;
+                }
+            }
+            for (String id : objects) {
+                if (!written.containsKey(id) && packable(id)) {
+                    written.put(id, position[0]);
+                    writeEntry(out, position, WHOLE, null, ObjectStore.read(id));
+                }
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw new IllegalArgumentException(e.getMessage());
+        }
+
+        String[] sorted = written.keySet().toArray(new String[0]);
+        Arrays.sort(sorted);
+        File packFile = join(PACK_DIR, "pack-" + sha1((Object[]) sorted) + ".pack");
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            raf.seek(8);
+            raf.writeInt(sorted.length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        writeIndex(indexTemp, sorted, written);
+        Journal.sync(temp);
+        Journal.sync(indexTemp);
+        try {
+            Files.move(indexTemp.toPath(), indexFileOf(packFile).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp.toPath(), packFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Journal.sync(PACK_DIR);
+
+        for (Pack old : packs()) {
+            if (!old.packFile.equals(packFile)) {
+                old.packFile.delete();
+                indexFileOf(old.packFile).delete();
+            }
+        }
+        for (String id : sorted) {
+            ObjectStore.objectFile(id).delete();
+        }
+        packs = null;
+        ObjectReader.clear();
+    }
+
+    /** True iff the object ID is small enough to be packed. */
+    private static boolean packable(String id) {
+        File loose = ObjectStore.objectFile(id);
+        return !loose.isFile() || loose.length() <= MAX_PACKED_SIZE;
+    }
+
+    /** Appends an entry of TYPE with DATA, and BASE for deltas, to OUT,
+     *  advancing POSITION[0] by its length. */
+    private static void writeEntry(DataOutputStream out, long[] position, int type,
+                                   String base, byte[] data) throws IOException {
+        byte[] stored = ObjectStore.deflate(data, 0, data.length);
+        out.writeByte(type);
+        out.writeInt(data.length);
+        out.writeInt(stored.length);
+        position[0] += 9;
+        if (base != null) {
+            out.write(ObjectStore.toBinary(base));
+            position[0] += ID_BYTES;
+        }
+        out.write(stored);
+        position[0] += stored.length;
+    }
+
+    /** Writes to INDEXFILE the index for the pack holding the SORTED ids at
+     *  OFFSETS. */
+    private static void writeIndex(File indexFile, String[] sorted,
+                                   HashMap<String, Long> offsets) {
+        int[] fanout = new int[256];
+        for (String id : sorted) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)]++;
+        }
+        for (int i = 1; i < fanout.length; i++) {
+            fanout[i] += fanout[i - 1];
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(indexFile.toPath())))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.length);
+            for (int count : fanout) {
+                out.writeInt(count);
+            }
+            for (String id : sorted) {
+                out.write(ObjectStore.toBinary(id));
+            }
+            for (String id : sorted) {
+                out.writeLong(offsets.get(id));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Returns the ids of all loose objects. */
+    static List<String> looseIds() {
+        List<String> result = new ArrayList<>();
+        String[] dirs = ObjectStore.OBJECTS.list();
+        if (dirs == null) {
+            return result;
+        }
+        for (String dir : dirs) {
+            if (dir.length() != 2) {
+                continue;
+            }
+            for (String rest : join(ObjectStore.OBJECTS, dir).list()) {
+                if (rest.length() == UID_LENGTH - 2) {
+                    result.add(dir + rest);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns the pack holding ID, or null. */
+    private static Pack find(String id) {
+        for (Pack pack : packs()) {
+            if (pack.offsetOf(id) >= 0) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    /** Drops the loaded pack indexes, so that they are read again on next
+     *  use. */
+    static synchronized void invalidate() {
+        packs = null;
+        ObjectReader.clear();
+    }
+
+    /** Returns the packs of this repository, leaving out any that a
+     *  repack running beside this command deletes while they are read. */
+    private static synchronized List<Pack> packs() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            List<String> names = plainFilenamesIn(PACK_DIR);
+            if (names != null) {
+                for (String name : names) {
+                    File packFile = join(PACK_DIR, name);
+                    if (!name.endsWith(".pack")) {
+                        continue;
+                    }
+                    try {
+                        packs.add(new Pack(packFile));
+                    } catch (IllegalArgumentException e) {
+                        if (packFile.exists() && indexFileOf(packFile).exists()) {
+                            throw e;
+                        }
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+
+    /** Returns the offset of ID in this pack, or -1 if it is not here,
+     *  by binary search within the fan-out bucket of its first byte. */
+    private long offsetOf(String id) {
+        byte[] key = ObjectStore.toBinary(id);
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : fanout[first - 1];
+        int hi = fanout[first] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = Arrays.compareUnsigned(ids, mid * ID_BYTES, (mid + 1) * ID_BYTES,
+                    key, 0, ID_BYTES);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return offsets[mid];
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the contents of the entry of ID, resolving deltas. The
+     *  whole entries of a version 1 pack are views of the mapped pack. */
+    private ByteBuffer readEntry(String id) {
+        Entry entry = entryAt(offsetOf(id));
+        ByteBuffer data = entry.data();
+        if (version > 1) {
+            try {
+                data = ObjectStore.inflate(data, entry.size());
+            } catch (DataFormatException e) {
+                throw error("Corrupt object %s.", id);
+            }
+        }
+        if (entry.type() == DELTA) {
+            return ByteBuffer.wrap(Delta.apply(ObjectStore.read(entry.base()),
+                    ObjectStore.toArray(data)));
+        }
+        return data;
+    }
+
+    /** Returns the header of the entry at OFFSET, with a view of its stored
+     *  data in the mapped pack. */
+    private Entry entryAt(long offset) {
+        ByteBuffer header = ObjectReader.view(packFile, offset, HEADER_BYTES);
+        int type = header.get() & 0xff;
+        int size = header.getInt();
+        int stored = version == 1 ? size : header.getInt();
+        String base = null;
+        if (type == DELTA) {
+            byte[] baseId = new byte[ID_BYTES];
+            header.get(baseId);
+            base = ObjectStore.toHex(baseId);
+        }
+        ByteBuffer data = ObjectReader.view(packFile, offset + header.position(), stored);
+        if (data.remaining() != stored) {
+            throw new IllegalArgumentException("truncated pack " + packFile);
+        }
+        return new Entry(type, size, base, data, header.position() + stored);
+    }
+
+    /** An entry of a pack: its TYPE, the SIZE of its data once inflated,
+     *  the BASE id of a delta, its stored DATA, and the LENGTH of the whole
+     *  entry in the pack. */
+    private record Entry(int type, int size, String base, ByteBuffer data, long length) {
+    }
+
+    /** Returns the .idx file belonging to PACKFILE. */
+    private static File indexFileOf(File packFile) {
+        String name = packFile.getName();
+        return join(packFile.getParentFile(), name.substring(0, name.length() - 5) + ".idx");
+    }
+}
@@ -0,0 +1,307 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** The branches. Each lives in its own file under .gitlet/refs/heads,
+ *  holding the id of its commit, so that moving one branch rewrites only
+ *  that file. Branches that are not in use can be moved by pack-refs into
+ *  .gitlet/packed-refs, one "ID NAME" line each, sorted by the UTF-8 bytes
+ *  of the name so that a single branch is found by binary search. A loose
+ *  file overrides the packed line for its branch.
+ *
+ *  All writes go through the Journal, and through Batch during a batch.
+ *  Each is a compare-and-swap: a branch is only changed if it still holds
+ *  what this command read, so a write based on a stale value fails rather
+ *  than silently undoing someone else's. What the branch holds is taken
+ *  with this command's own writes not yet committed, so writing the same
+ *  branch twice in one transaction is no conflict.
+ *
+ *  @author Jae Won Kim
+ */
+class Refs {
+
+    /** Directory of the loose refs. */
+    static final File HEADS = join(Repository.GITLET_DIR, "refs", "heads");
+    /** The packed refs. */
+    static final File PACKED = join(Repository.GITLET_DIR, "packed-refs");
+
+    /** Orders names as their lines are sorted in PACKED. */
+    private static final Comparator<String> ORDER = (a, b) -> Arrays.compareUnsigned(
+            a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+
+    /** What each branch looked up held on disk, null if it did not exist. */
+    private static final Map<String, String> READ = new HashMap<>();
+    /** What this command set each branch to, null if it deleted it. */
+    private static final Map<String, String> WRITTEN = new HashMap<>();
+    /** True iff this command packs the refs, and the branch it leaves
+     *  loose. */
+    private static boolean packing;
+    private static String hot;
+
+    /** Returns the commit id of the branch NAME, or null if there is no
+     *  such branch. */
+    static String get(String name) {
+        if (WRITTEN.containsKey(name)) {
+            return WRITTEN.get(name);
+        }
+        if (!READ.containsKey(name)) {
+            READ.put(name, lookup(name));
+        }
+        return READ.get(name);
+    }
+
+    /** Returns every branch with its commit id, in name order. */
+    static TreeMap<String, String> all() {
+        TreeMap<String, String> refs = new TreeMap<>();
+        Journal.snapshot(() -> {
+            refs.clear();
+            refs.putAll(scan());
+        }, HEADS, PACKED);
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            READ.putIfAbsent(ref.getKey(), ref.getValue());
+        }
+        for (Map.Entry<String, String> ref : WRITTEN.entrySet()) {
+            if (ref.getValue() == null) {
+                refs.remove(ref.getKey());
+            } else {
+                refs.put(ref.getKey(), ref.getValue());
+            }
+        }
+        return refs;
+    }
+
+    /** Points the branch NAME, new or not, at the commit ID. */
+    static void set(String name, String id) {
+        write(name, id);
+    }
+
+    /** Deletes the branch NAME. */
+    static void delete(String name) {
+        write(name, null);
+        if (packedId(name) != null) {
+            Batch.write(PACKED, Refs::writePacked);
+        }
+    }
+
+    /** Moves every loose branch but HOT, which is expected to move again
+     *  soon, into PACKED. */
+    static void pack(String hot) {
+        packing = true;
+        Refs.hot = hot;
+        Batch.write(PACKED, Refs::writePacked);
+    }
+
+    /** Notes that the branch NAME held ID on disk, as read by Repository
+     *  together with HEAD, unless it was already looked up. */
+    static void remember(String name, String id) {
+        if (!READ.containsKey(name)) {
+            READ.put(name, id);
+        }
+    }
+
+    /** Drops what this command read and wrote, so that the branches are
+     *  read again on next use. */
+    static void invalidate() {
+        READ.clear();
+        WRITTEN.clear();
+        packing = false;
+        hot = null;
+    }
+
+    /** True iff NAME may be used for a branch: it must be a file name that
+     *  is neither hidden nor temporary and holds no spaces or control
+     *  characters. */
+    static boolean isValidName(String name) {
+        return !name.isEmpty() && !name.startsWith(".") && !name.endsWith(".tmp")
+                && name.chars().noneMatch(c -> c <= ' ' || c == 0x7f || c == '/' || c == '\\');
+    }
+
+    /** Converts a repository that keeps all branches in the serialized map
+     *  in BRANCH to packed refs. Runs once per repository. */
+    @SuppressWarnings("unchecked")
+    static void migrate() {
+        if (!Repository.BRANCH.isFile()) {
+            return;
+        }
+        TreeMap<String, String> refs = new TreeMap<>(ORDER);
+        refs.putAll((HashMap<String, String>) readObject(Repository.BRANCH, HashMap.class));
+        refs.remove("currHead");
+        Journal.write(PACKED, encode(refs));
+        Journal.delete(Repository.BRANCH);
+    }
+
+    /** Schedules the compare-and-swap of the branch NAME to ID, or its
+     *  deletion if ID is null. */
+    private static void write(String name, String id) {
+        String expected = READ.containsKey(name) ? READ.get(name) : lookup(name);
+        READ.put(name, expected);
+        WRITTEN.put(name, id);
+        File file = join(HEADS, name);
+        Batch.write(file, () -> {
+            if (!Objects.equals(current(name), READ.get(name))) {
+                throw error("Branch %s was changed by another command.", name);
+            }
+            if (id == null) {
+                Journal.delete(file);
+            } else {
+                Journal.write(file, (id + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            READ.put(name, id);
+        });
+    }
+
+    /** Rewrites PACKED without the branches this command deleted and, when
+     *  packing, with every loose branch but HOT, deleting their files. */
+    private static void writePacked() {
+        TreeMap<String, String> packed = readPacked();
+        if (packing) {
+            for (Map.Entry<String, String> ref : all().entrySet()) {
+                File loose = join(HEADS, ref.getKey());
+                if (!ref.getKey().equals(hot)) {
+                    packed.put(ref.getKey(), ref.getValue());
+                    if (loose.isFile() || WRITTEN.containsKey(ref.getKey())) {
+                        Journal.delete(loose);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, String> ref : WRITTEN.entrySet()) {
+            if (ref.getValue() == null) {
+                packed.remove(ref.getKey());
+            }
+        }
+        Journal.write(PACKED, encode(packed));
+    }
+
+    /** Returns the id of the branch NAME as it is on disk, or null. */
+    static String lookup(String name) {
+        File file = join(HEADS, name);
+        if (file.isFile()) {
+            return readContentsAsString(file).trim();
+        }
+        return packedId(name);
+    }
+
+    /** Returns the id of the branch NAME as it will be once the current
+     *  transaction commits, or null: as on disk but for what this command
+     *  has already written to the Journal. */
+    private static String current(String name) {
+        byte[] loose = Journal.contents(join(HEADS, name));
+        if (loose != null) {
+            return new String(loose, StandardCharsets.UTF_8).trim();
+        }
+        if (!Journal.pending(PACKED)) {
+            return packedId(name);
+        }
+        byte[] packed = Journal.contents(PACKED);
+        return packed == null ? null : decode(packed).get(name);
+    }
+
+    /** Returns every branch on disk: the packed ones, overridden by the
+     *  loose ones. */
+    private static TreeMap<String, String> scan() {
+        TreeMap<String, String> refs = readPacked();
+        List<String> loose = plainFilenamesIn(HEADS);
+        if (loose != null) {
+            for (String name : loose) {
+                if (isValidName(name)) {
+                    try {
+                        refs.put(name, readContentsAsString(join(HEADS, name)).trim());
+                    } catch (IllegalArgumentException e) {
+                        /* Deleted since it was listed. */
+                    }
+                }
+            }
+        }
+        return refs;
+    }
+
+    /** Returns the id PACKED holds for NAME, or null, found by binary
+     *  search over its lines without reading the rest of the file. */
+    private static String packedId(String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(PACKED.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            int lo = 0;
+            int hi = buffer.limit();
+            while (lo < hi) {
+                int start = (lo + hi) >>> 1;
+                while (start > lo && buffer.get(start - 1) != '\n') {
+                    start--;
+                }
+                int end = start;
+                while (end < buffer.limit() && buffer.get(end) != '\n') {
+                    end++;
+                }
+                int cmp = compare(buffer, start + UID_LENGTH + 1, end, key);
+                if (cmp == 0) {
+                    byte[] id = new byte[UID_LENGTH];
+                    buffer.get(start, id);
+                    return new String(id, StandardCharsets.US_ASCII);
+                } else if (cmp < 0) {
+                    lo = end + 1;
+                } else {
+                    hi = start;
+                }
+            }
+            return null;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Compares BUFFER[FROM..TO) with KEY as unsigned bytes. */
+    private static int compare(MappedByteBuffer buffer, int from, int to, byte[] key) {
+        int length = to - from;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int cmp = Integer.compare(buffer.get(from + i) & 0xff, key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    /** Returns every branch in PACKED. */
+    private static TreeMap<String, String> readPacked() {
+        return PACKED.isFile() ? decode(readContents(PACKED)) : new TreeMap<>(ORDER);
+    }
+
+    /** Returns the branches in BYTES, the contents of PACKED. */
+    private static TreeMap<String, String> decode(byte[] bytes) {
+        TreeMap<String, String> refs = new TreeMap<>(ORDER);
+        for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+            if (line.length() > UID_LENGTH + 1) {
+                refs.put(line.substring(UID_LENGTH + 1), line.substring(0, UID_LENGTH));
+            }
+        }
+        return refs;
+    }
+
+    /** Returns REFS, sorted by ORDER, as the contents of PACKED. */
+    private static byte[] encode(TreeMap<String, String> refs) {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            out.append(ref.getValue()).append(' ').append(ref.getKey()).append('\n');
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
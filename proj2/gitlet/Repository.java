@@ -1,11 +1,25 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import static gitlet.Utils.*;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 
 /** Represents a gitlet repository.
@@ -25,28 +39,38 @@ public class Repository {
     public static final File CWD = new File(System.getProperty("user.dir"));
     /** The .gitlet directory. */
     public static final File GITLET_DIR = join(CWD, ".gitlet");
-    /** Staging Area directory */
+    /** Legacy staging directory, migrated into Stage on first use */
     public static final File STAGING = join(GITLET_DIR, "staging");
-    /** Blob hash directory */
+    /** Legacy blob map, migrated into ObjectStore on first use */
     public static final File BLOB = join(GITLET_DIR, "blob");
     /** Commit director */
     public static final File COMMIT = join(GITLET_DIR, "commit");
-    /** Remove directory */
+    /** Legacy remove directory, migrated into Stage on first use */
     public static final File REMOVE = join(GITLET_DIR, "remove");
-    /** Branches directory */
+    /** Legacy branch map, migrated into Refs on first use */
     public static final File BRANCH = join(GITLET_DIR, "branch");
     /** Untracked files directory */
     public static final File UNTRACTED = join(GITLET_DIR, "untracked");
 
-    /** The HEAD */
+    /** The HEAD: "ref: <branch>" or, when detached, a commit id */
     public static final File HEAD = join(GITLET_DIR, "head");
+    /** Config key recording that all commits are in the binary format */
+    private static final String COMMIT_FORMAT_KEY = "core.commitformat";
+    /** Prefix of a HEAD that names a branch */
+    private static final String REF_PREFIX = "ref: ";
 
-    /** The blob hash */
-    private static HashMap<String, byte[]> blobHash;
-    /** Hash of branches */
-    private static HashMap<String, String> branchHash;
     /** Hash of untracked */
     private static HashMap<String, String> untrackHash;
+    /** Contents of HEAD, without the newline */
+    private static String head;
+
+    /** Drops the loaded HEAD, Refs and untracked map, so that they are
+     *  read again on next use. */
+    static void invalidate() {
+        untrackHash = null;
+        head = null;
+        Refs.invalidate();
+    }
 
     public static void initCommand() {
         if (GITLET_DIR.exists()) {
@@ -55,21 +79,13 @@ public class Repository {
         } else {
             GITLET_DIR.mkdir();
             COMMIT.mkdir();
-            STAGING.mkdir();
-            REMOVE.mkdir();
+            ObjectStore.OBJECTS.mkdir();
+            Config.set(COMMIT_FORMAT_KEY, Integer.toString(Commit.VERSION));
             Commit initialCommit = new Commit("initial commit", null, null);
-            String id = sha1(Utils.serialize(initialCommit));
-            File initialCommitFile = join(COMMIT, id);
-            Utils.writeObject(initialCommitFile, initialCommit);
-            Utils.writeObject(HEAD, initialCommit);
-
-            blobHash = new HashMap<>();
-            Utils.writeObject(BLOB, blobHash);
+            String id = writeCommit(initialCommit);
 
-            branchHash = new HashMap<>();
-            branchHash.put("master", id);
-            branchHash.put("currHead", "master");
-            Utils.writeObject(BRANCH, branchHash);
+            Refs.set("master", id);
+            setHead("master");
 
             untrackHash = new HashMap<>();
             for (String files: CWD.list()) {
@@ -80,101 +96,148 @@ public class Repository {
     }
 
     public static void generalCommit(String message, String parent1, String parent2) {
-        if (STAGING.list().length == 0 && REMOVE.list().length == 0) {
+        if (Stage.isEmpty()) {
             throw Utils.error("No changes added to the commit.");
         }
 
-        branchHash = (HashMap<String, String>) Utils.readObject(BRANCH, HashMap.class);
-
         Commit newCommit = new Commit(message, parent1, parent2);
-        HashMap<String, String> trackFiles = newCommit.getTrackFiles();
 
-        Commit parentCommit = Utils.readObject(HEAD, Commit.class);
-        HashMap<String, String> parentFiles = parentCommit.getTrackFiles();
-
-        if (parentCommit.getTrackFiles() != null) {
-            for (String rm : REMOVE.list()) {
-                parentFiles.remove(rm);
-            }
-            for (Map.Entry<String, String> entry : parentFiles.entrySet()) {
-                trackFiles.put(entry.getKey(), entry.getValue());
-            }
+        HashMap<String, String> changes = new HashMap<>(Stage.added());
+        for (String rm : Stage.removed()) {
+            changes.put(rm, null);
         }
+        newCommit.setTree(Tree.update(headCommit().getTree(), changes));
+        Stage.clear();
 
-        blobHash = (HashMap<String, byte[]>) Utils.readObject(Repository.BLOB, HashMap.class);
-
-        for (String fileName: STAGING.list()) {
-            byte[] blob = readContents(join(STAGING, fileName));
-            String stringBlob = fileName + readContentsAsString(join(STAGING, fileName));
-            String blobID = sha1(stringBlob);
+        advanceHead(writeCommit(newCommit));
+        Stage.save();
+    }
 
-            blobHash.put(blobID, blob);
-            trackFiles.put(fileName, blobID);
-            join(STAGING, fileName).delete();
+    /** Stages the files named by PATHS, each a file, a directory, whose
+     *  files are all added, or a glob pattern matched against paths relative
+     *  to the working directory. Files the stat cache does not vouch for are
+     *  hashed and stored in parallel, and HEAD and the staging area are each
+     *  read and written once. */
+    public static void add(String... paths) {
+        List<String> names = expandPaths(paths);
+        HashMap<String, String> headTrack = headCommit().getTrackFiles();
+
+        String[] ids = new String[names.size()];
+        BasicFileAttributes[] attrs = new BasicFileAttributes[names.size()];
+        List<Integer> toHash = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            File file = join(CWD, names.get(i));
+            attrs[i] = StatCache.attributes(file);
+            ids[i] = StatCache.peek(file, attrs[i]);
+            if (ids[i] == null || !ids[i].equals(headTrack.get(names.get(i)))
+                    && !ObjectStore.contains(ids[i])) {
+                toHash.add(i);
+            }
         }
+        toHash.parallelStream().forEach(i ->
+                ids[i] = ObjectStore.writeFile(names.get(i), join(CWD, names.get(i))));
 
-        for (String fileName: REMOVE.list()) {
-            join(REMOVE, fileName).delete();
+        for (int i : toHash) {
+            StatCache.record(join(CWD, names.get(i)), attrs[i], ids[i]);
         }
-
-        Utils.writeObject(BLOB, blobHash);
-        String id = sha1(Utils.serialize(newCommit));
-        File commitFile = join(COMMIT, id);
-        Utils.writeObject(commitFile, newCommit);
-        Utils.writeObject(HEAD, newCommit);
-        branchHash.put(branchHash.get("currHead"), id);
-        Utils.writeObject(BRANCH, branchHash);
+        for (int i = 0; i < names.size(); i++) {
+            if (ids[i].equals(headTrack.get(names.get(i)))) {
+                Stage.unstage(names.get(i));
+            } else {
+                Stage.add(names.get(i), ids[i]);
+            }
+        }
+        Stage.save();
+        StatCache.save();
     }
 
-    public static void add(String fileName) {
-        File fileDirectory = join(CWD, fileName);
-        if (!fileDirectory.exists()) {
-            throw Utils.error("File does not exist.");
+    /** Returns the working files named by PATHS, as paths relative to the
+     *  working directory. Directories and globs never yield the files that
+     *  were present when the repository was created. */
+    private static List<String> expandPaths(String[] paths) {
+        untrackHash = (HashMap<String, String>) Utils.readObject(UNTRACTED, HashMap.class);
+        Path root = CWD.toPath().toAbsolutePath().normalize();
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        for (String path : paths) {
+            File file = join(CWD, path);
+            if (file.isFile()) {
+                names.add(root.relativize(file.toPath().toAbsolutePath().normalize()).toString());
+            } else if (file.isDirectory() || path.matches(".*[*?\\[{].*")) {
+                PathMatcher matcher = file.isDirectory() ? null
+                        : FileSystems.getDefault().getPathMatcher("glob:" + path);
+                List<String> found = new ArrayList<>();
+                for (String name : workingFiles(file.isDirectory() ? file : CWD)) {
+                    if (matcher == null || matcher.matches(Paths.get(name))) {
+                        found.add(name);
+                    }
+                }
+                if (found.isEmpty() && matcher != null) {
+                    throw Utils.error("File does not exist.");
+                }
+                names.addAll(found);
+            } else {
+                throw Utils.error("File does not exist.");
+            }
         }
+        return new ArrayList<>(names);
+    }
 
-        Commit currCommit = Utils.readObject(HEAD, Commit.class);
-        File stagingFile = join(STAGING, fileName);
-        File removeFile = join(REMOVE, fileName);
-        String haha = sha1(fileName + Utils.readContentsAsString(fileDirectory));
+    /** Returns the files under DIR, as sorted paths relative to the working
+     *  directory, leaving out .gitlet and the files that were present when
+     *  the repository was created. Files that vanish during the walk, as
+     *  another command may remove them, are left out too. */
+    private static List<String> workingFiles(File dir) {
+        if (untrackHash == null) {
+            untrackHash = (HashMap<String, String>) Utils.readObject(UNTRACTED, HashMap.class);
+        }
+        Path root = CWD.toPath().toAbsolutePath().normalize();
+        List<String> result = new ArrayList<>();
+        Path gitlet = GITLET_DIR.toPath().toAbsolutePath().normalize();
+        try {
+            Files.walkFileTree(dir.toPath().toAbsolutePath().normalize(),
+                    new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                    return d.equals(gitlet) ? FileVisitResult.SKIP_SUBTREE
+                            : FileVisitResult.CONTINUE;
+                }
 
-        if (currCommit.getTrackFiles().containsKey(fileName)
-                && currCommit.getTrackFiles().get(fileName).equals(haha)) {
-            if (stagingFile.exists()) {
-                stagingFile.delete();
-            }
-            if (removeFile.exists()) {
-                removeFile.delete();
-            }
-        } else {
+                @Override
+                public FileVisitResult visitFile(Path p, BasicFileAttributes attrs) {
+                    Path relative = root.relativize(p);
+                    if (attrs.isRegularFile()
+                            && !untrackHash.containsKey(relative.getName(0).toString())) {
+                        result.add(relative.toString());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
 
-            try {
-                Files.copy(fileDirectory.toPath(), stagingFile.toPath(),
-                        StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+                @Override
+                public FileVisitResult visitFileFailed(Path p, IOException e) throws IOException {
+                    if (e instanceof NoSuchFileException) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    throw e;
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
         }
+        Collections.sort(result);
+        return result;
     }
 
     public static void log(boolean isGlobal) {
         if (isGlobal) {
-            for (String commitID: COMMIT.list()) {
-                Commit currCommit = Utils.readObject(Utils.join(COMMIT, commitID), Commit.class);
-                Date cD = currCommit.getTimestamp();
-                Formatter fmt = new Formatter();
-                fmt.format("%ta %tb %te %tT %tY %tz", cD, cD, cD, cD, cD, cD, cD);
-                System.out.println("===");
-                System.out.println(String.format("commit %s", commitID));
-                System.out.print("Date: ");
-                System.out.println(fmt);
-                System.out.println(currCommit.getMessage());
-                System.out.println();
-            }
+            GlobalLog.print(System.out, Runtime.getRuntime().availableProcessors());
         } else {
-            Commit headCommit = readObject(HEAD, Commit.class);
+            String id = headId();
+            CommitGraph graph = CommitGraph.containing(id);
 
-            while (headCommit != null) {
-                String commitID = String.format("commit %s", sha1(serialize(headCommit)));
+            for (int at = graph.indexOf(id); at != CommitGraph.NONE;
+                 at = graph.parent1(at)) {
+                Commit headCommit = readCommitHeader(graph.idAt(at));
+                String commitID = String.format("commit %s", headCommit.getId());
                 String message = headCommit.getMessage();
                 Date cD = headCommit.getTimestamp();
                 Formatter fmt = new Formatter();
@@ -198,87 +261,45 @@ public class Repository {
                     System.out.println(headCommit.getMessage());
                     System.out.println();
                 }
-                if (headCommit.getParent1() == null) {
-                    break;
-                } else {
-                    headCommit = readObject(join(COMMIT, headCommit.getParent1()), Commit.class);
-                }
             }
         }
     }
 
     public static void remove(String fileName) {
-        boolean inStaging = false;
-        boolean inCommit = false;
-
-        for (String files : STAGING.list()) {
-            if (fileName.equals(files)) {
-                Utils.join(STAGING, fileName).delete();
-                inStaging = true;
-            }
-        }
-
-        Commit currCommit = Utils.readObject(HEAD, Commit.class);
-
-        for (String key : currCommit.getTrackFiles().keySet()) {
-            if (fileName.equals(key)) {
-                Utils.join(CWD, fileName).delete();
-                Utils.join(REMOVE, fileName).mkdir();
-                inCommit = true;
-            }
-        }
+        boolean inStaging = Stage.added().containsKey(fileName);
+        boolean inCommit = headCommit().getTrackFiles().containsKey(fileName);
 
         if (!(inCommit || inStaging)) {
             throw Utils.error("No reason to remove the file.");
         }
+        if (inCommit) {
+            Utils.join(CWD, fileName).delete();
+            Stage.remove(fileName);
+        } else {
+            Stage.unstage(fileName);
+        }
+        Stage.save();
 
     }
 
     public static void checkout(String[] args) {
         int len = args.length;
-        blobHash = (HashMap<String, byte[]>) Utils.readObject(BLOB, HashMap.class);
-        branchHash = (HashMap<String, String>) Utils.readObject(BRANCH, HashMap.class);
-        untrackHash = (HashMap<String, String>) Utils.readObject(UNTRACTED, HashMap.class);
-        Commit currCommit = Utils.readObject(HEAD, Commit.class);
+        Commit currCommit = headCommit();
         HashMap<String, String> currTrack = currCommit.getTrackFiles();
 
         switch (len) {
             case 2:
                 String branchName = args[1];
-                if (!branchHash.containsKey(branchName)) {
+                String branchId = Refs.get(branchName);
+                if (branchId == null) {
                     throw Utils.error("No such branch exists.");
                 }
-                if (branchName.equals(branchHash.get("currHead"))) {
+                if (branchName.equals(currentBranch())) {
                     throw Utils.error("No need to checkout the current branch");
                 }
 
-                Commit tarComm = readObject(join(COMMIT, branchHash.get(branchName)), Commit.class);
-                HashMap<String, String> tarTrack = tarComm.getTrackFiles();
-
-                testUntracked(currTrack, tarTrack);
-
-                Utils.writeObject(HEAD, tarComm);
-                branchHash.put("currHead", branchName);
-                branchHash.put(branchHash.get("currHead"), sha1(serialize(tarComm)));
-                Utils.writeObject(BRANCH, branchHash);
-
-                for (String files : CWD.list()) {
-                    if (!untrackHash.containsKey(files)) {
-                        Utils.join(CWD, files).delete();
-                    }
-                }
-                for (String files : tarTrack.keySet()) {
-                    String fileID = tarTrack.get(files);
-                    Utils.writeContents(Utils.join(CWD, files), blobHash.get(fileID));
-                }
-
-                for (String files : STAGING.list()) {
-                    Utils.join(STAGING, files).delete();
-                }
-
-                for (String files : REMOVE.list()) {
-                    Utils.join(REMOVE, files).delete();
-                }
+                checkoutCommit(currCommit, readCommit(branchId));
+                setHead(branchName);
                 break;
             case 3:
                 if (!args[1].equals("--")) {
@@ -286,7 +307,8 @@ public class Repository {
                 }
 
                 if (currTrack.containsKey(args[2])) {
-                    writeContents(join(CWD, args[2]), blobHash.get(currTrack.get(args[2])));
+                    ObjectStore.copyTo(currTrack.get(args[2]), join(CWD, args[2]));
+                    StatCache.record(join(CWD, args[2]), currTrack.get(args[2]));
                 } else {
                     throw Utils.error("File does not exist in that commit.");
                 }
@@ -301,11 +323,12 @@ public class Repository {
 
                 id = fullId(id);
 
-                Commit target = Utils.readObject(Utils.join(COMMIT, id), Commit.class);
+                Commit target = readCommit(id);
                 HashMap<String, String> files = target.getTrackFiles();
 
                 if (files.containsKey(file)) {
-                    Utils.writeContents(Utils.join(CWD, file), blobHash.get(files.get(file)));
+                    ObjectStore.copyTo(files.get(file), Utils.join(CWD, file));
+                    StatCache.record(Utils.join(CWD, file), files.get(file));
                 } else {
                     throw Utils.error("File does not exist in that commit.");
                 }
@@ -313,405 +336,530 @@ public class Repository {
             default:
                 throw Utils.error("No such command exists.");
         }
+        StatCache.save();
     }
 
-    public static void find(String message) {
-        int num = 0;
-
-        for (String commitID: COMMIT.list()) {
-            Commit currCommit = Utils.readObject(Utils.join(COMMIT, commitID), Commit.class);
-            if (currCommit.getMessage().equals(message)) {
-                System.out.println(commitID);
-                num++;
-            }
-        }
-
-        if (num == 0) {
+    /** Prints the ids of the commits whose message is MESSAGE, or, if WORDS,
+     *  whose message contains every word of MESSAGE. */
+    public static void find(String message, boolean words) {
+        List<String> ids = words ? MessageIndex.words(message) : MessageIndex.exact(message);
+        if (ids.isEmpty()) {
             throw Utils.error("Found no commit with that message.");
         }
+        for (String id : ids) {
+            System.out.println(id);
+        }
     }
 
     public static void status() {
-        branchHash = (HashMap<String, String>) Utils.readObject(BRANCH, HashMap.class);
-        String[] keys = branchHash.keySet().toArray(new String[0]);
-        Arrays.sort(keys);
+        String[] keys = Refs.all().keySet().toArray(new String[0]);
 
         System.out.println("=== Branches ===");
         for (int i = 0; i < keys.length; i++) {
-            if (!keys[i].equals("currHead")) {
-                if (keys[i].equals(branchHash.get("currHead"))) {
-                    System.out.print("*");
-                }
-                System.out.println(keys[i]);
+            if (keys[i].equals(currentBranch())) {
+                System.out.print("*");
             }
+            System.out.println(keys[i]);
         }
         System.out.println();
 
         System.out.println("=== Staged Files ===");
-        String[] files = STAGING.list();
-        Arrays.sort(files);
-
-        for (String fileName : files) {
+        for (String fileName : Stage.added().keySet()) {
             System.out.println(fileName);
         }
         System.out.println();
 
         System.out.println("=== Removed Files ===");
-        String[] file = REMOVE.list();
-        Arrays.sort(file);
-
-        for (String fileName : file) {
+        for (String fileName : Stage.removed()) {
             System.out.println(fileName);
         }
         System.out.println();
 
+        HashMap<String, String> headTrack = headCommit().getTrackFiles();
+        Map<String, String> staged = Stage.added();
+        Set<String> removed = Stage.removed();
+        TreeMap<String, String> modified = new TreeMap<>();
+        for (Map.Entry<String, String> entry : headTrack.entrySet()) {
+            String name = entry.getKey();
+            File cwdFile = join(CWD, name);
+            if (staged.containsKey(name)) {
+                continue;
+            }
+            if (!cwdFile.isFile()) {
+                if (!removed.contains(name)) {
+                    modified.put(name, "deleted");
+                }
+            } else if (!StatCache.hash(name, cwdFile).equals(entry.getValue())) {
+                modified.put(name, "modified");
+            }
+        }
+        for (Map.Entry<String, String> entry : staged.entrySet()) {
+            String name = entry.getKey();
+            File cwdFile = join(CWD, name);
+            if (!cwdFile.isFile()) {
+                modified.put(name, "deleted");
+            } else if (!StatCache.hash(name, cwdFile).equals(entry.getValue())) {
+                modified.put(name, "modified");
+            }
+        }
         System.out.println("=== Modifications Not Staged For Commit ===");
+        for (Map.Entry<String, String> entry : modified.entrySet()) {
+            System.out.println(entry.getKey() + " (" + entry.getValue() + ")");
+        }
         System.out.println();
 
         System.out.println("=== Untracked Files ===");
+        for (String name : workingFiles(CWD)) {
+            if (!staged.containsKey(name)
+                    && (!headTrack.containsKey(name) || removed.contains(name))) {
+                System.out.println(name);
+            }
+        }
         System.out.println();
+        StatCache.save();
     }
 
     public static void branch(String name) {
-        branchHash = (HashMap<String, String>) Utils.readObject(BRANCH, HashMap.class);
-
-        if (branchHash.containsKey(name)) {
+        if (!Refs.isValidName(name)) {
+            throw Utils.error("Invalid branch name.");
+        }
+        if (Refs.get(name) != null) {
             throw Utils.error("A branch with that name already exists.");
         }
 
-        String id = sha1(Utils.readContents(HEAD));
-        branchHash.put(name, id);
-        Utils.writeObject(BRANCH, branchHash);
+        Refs.set(name, headId());
     }
 
     public static void rmBranch(String name) {
-        branchHash = (HashMap<String, String>) Utils.readObject(BRANCH, HashMap.class);
-
-        if (!branchHash.containsKey(name)) {
+        if (Refs.get(name) == null) {
             throw Utils.error("A branch with that name does not exist.");
         }
 
-        if (name.equals(branchHash.get("currHead"))) {
+        if (name.equals(currentBranch())) {
             throw Utils.error("Cannot remove the current branch.");
         }
 
-        branchHash.remove(name);
-        Utils.writeObject(BRANCH, branchHash);
+        Refs.delete(name);
+    }
+
+    /** Moves every branch but the current one into the packed refs. */
+    public static void packRefs() {
+        Refs.pack(currentBranch());
     }
 
     public static void reset(String id) {
         id = fullId(id);
-
-        branchHash = (HashMap<String, String>) Utils.readObject(BRANCH, HashMap.class);
-        branchHash.put("tempBranch", id);
-        Utils.writeObject(BRANCH, branchHash);
-        String head = branchHash.get("currHead");
-
-        String[] args = {"checkout", "tempBranch"};
-        checkout(args);
-        branchHash.put(head, id);
-        branchHash.put("currHead", head);
-        branchHash.remove("tempBranch");
-
-        Utils.writeObject(BRANCH, branchHash);
+        checkoutCommit(headCommit(), readCommit(id));
+        advanceHead(id);
     }
 
     public static void merge(String branchName) {
-        if (STAGING.list().length != 0 || REMOVE.list().length != 0) {
+        if (!Stage.isEmpty()) {
             throw error("You have uncommitted changes.");
         }
-        blobHash = (HashMap<String, byte[]>) readObject(BLOB, HashMap.class);
-        branchHash = (HashMap<String, String>) Utils.readObject(BRANCH, HashMap.class);
+        String target = Refs.get(branchName);
 
-        if (!branchHash.containsKey(branchName)) {
+        if (target == null) {
             throw error("A branch with that name does not exist.");
-        } else if (branchName.equals(branchHash.get("currHead"))) {
+        } else if (branchName.equals(currentBranch())) {
             throw error("Cannot merge a branch with itself.");
         }
-        Commit head = readObject(HEAD, Commit.class);
-        Commit branch = readObject(join(COMMIT, branchHash.get(branchName)), Commit.class);
-        Commit split = findSplit2(head, branch);
-        HashMap<String, String> splitTrack = split.getTrackFiles();
-        HashMap<String, String> headTrack = head.getTrackFiles();
-        HashMap<String, String> branchTrack = branch.getTrackFiles();
-        String headId = sha1(serialize(head));
-        String branchId = sha1(serialize(branch));
-        if (sha1(serialize(split)).equals(branchId)) {
+        Commit head = headCommit();
+        Commit branch = readCommit(target);
+        Commit split = readCommit(MergeBase.best(head.getId(), branch.getId()));
+        String headId = head.getId();
+        String branchId = branch.getId();
+        if (split.getId().equals(branchId)) {
             System.out.println("Given branch is an ancestor of the current branch.");
-            System.exit(0);
-        } else if (sha1(serialize(split)).equals(headId)) {
-            String[] args = {"checkout", branchName};
-            checkout(args);
+            return;
+        } else if (split.getId().equals(headId)) {
+            checkoutCommit(head, branch);
+            advanceHead(branchId);
             System.out.println("Current branch fast-forwarded.");
-            System.exit(0);
+            return;
         }
-        testUntracked(headTrack, branchTrack);
         Commit newCommit = new Commit("Merged " + branchName + " into "
-                + branchHash.get("currHead"), headId, branchId);
-        HashMap<String, String> trackFiles = newCommit.getTrackFiles();
-        HashMap<String, String> listOfFiles = mergeHelper(branchTrack, headTrack, splitTrack);
-
-        for (String fileName : listOfFiles.keySet()) {
-            int mergeCase = findCase(splitTrack, headTrack, branchTrack, fileName);
-            String branchFile = branchTrack.get(fileName);
-            String headFile = headTrack.get(fileName);
-            join(CWD, fileName).delete();
-            switch (mergeCase) {
-                case 1:
-                    trackFiles.put(fileName, branchFile);
-                    writeContents(join(CWD, fileName), blobHash.get(branchFile));
-                    break;
-                case 2:
-                    if (headFile != null) {
-                        trackFiles.put(fileName, headFile);
-                        writeContents(join(CWD, fileName), blobHash.get(headFile));
-                    }
-                    break;
-                case 3:
-                    System.out.println("Encountered a merge conflict.");
-                    String newContents = "<<<<<<< HEAD\n";
-                    writeContents(join(CWD, fileName), blobHash.get(headFile));
-                    newContents += readContentsAsString(join(CWD, fileName)) + "=======\n";
-                    if (blobHash.containsKey(branchFile)) {
-                        writeContents(join(CWD, fileName), blobHash.get(branchFile));
-                        newContents += readContentsAsString(join(CWD, fileName)) + ">>>>>>>\n";
-                    } else {
-                        newContents += ">>>>>>>\n";
+                + currentBranch(), headId, branchId);
+        HashMap<String, String> changes = new HashMap<>();
+        HashMap<String, String> writes = new HashMap<>();
+        HashMap<String, String> created = new HashMap<>();
+        List<String> deletes = new ArrayList<>();
+        List<String> conflicts = new ArrayList<>();
+
+        TreeDiff.merge(split.getTree(), head.getTree(), branch.getTree(),
+            (path, base, ours, theirs) -> {
+                String result = theirs;
+                if (!Objects.equals(base, ours)) {
+                    result = mergeFile(path, base, ours, theirs, conflicts);
+                }
+                changes.put(path, result);
+                if (result == null) {
+                    deletes.add(path);
+                } else {
+                    writes.put(path, result);
+                    if (ours == null) {
+                        created.put(path, result);
                     }
-                    trackFiles.put(fileName, sha1(fileName + newContents));
-                    writeContents(join(CWD, fileName), newContents);
-                    blobHash.put(sha1(fileName + newContents), readContents(join(CWD, fileName)));
-                    break;
-                default:
-                    break;
-            }
+                }
+            });
+
+        testUntracked(created, deletes);
+        if (!conflicts.isEmpty()) {
+            System.out.println("Encountered a merge conflict.");
         }
-        Utils.writeObject(BLOB, blobHash);
-        String id = sha1(Utils.serialize(newCommit));
-        File commitFile = join(COMMIT, id);
-        Utils.writeObject(commitFile, newCommit);
-        Utils.writeObject(HEAD, newCommit);
-        branchHash.put(branchHash.get("currHead"), id);
-        Utils.writeObject(BRANCH, branchHash);
+        Materializer.apply(writes, deletes);
+        StatCache.save();
+        newCommit.setTree(Tree.update(head.getTree(), changes));
+        advanceHead(writeCommit(newCommit));
     }
 
-    private static String fullId(String id) {
-        if (!join(COMMIT, id).exists()) {
-            if (id.length() < 40) {
-                for (String iDs : COMMIT.list()) {
-                    if (iDs.substring(0, id.length()).equals(id)) {
-                        id = iDs;
-                        break;
-                    }
-                }
-            } else {
-                throw Utils.error("No commit with that id exists.");
-            }
+    public static void mergeBase(String first, String second, boolean all) {
+        List<String> bases = MergeBase.all(resolveCommit(first), resolveCommit(second));
+        for (String base : all ? bases : bases.subList(0, Math.min(1, bases.size()))) {
+            System.out.println(base);
         }
-
-        return id;
     }
 
-    private static void testUntracked(HashMap<String, String> currTrack,
-                                      HashMap<String, String> tarTrack) {
-        untrackHash = (HashMap<String, String>) Utils.readObject(UNTRACTED, HashMap.class);
+    public static void repack() {
+        repack(Collections.emptySet());
+    }
 
-        for (String files : CWD.list()) {
-            if (!untrackHash.containsKey(files)) {
-                if (!currTrack.containsKey(files)) {
-                    String tarID = tarTrack.get(files);
-                    String cwdID = sha1(files + sha1(readContentsAsString(join(CWD, files))));
-                    if (!cwdID.equals(tarID) && tarID != null) {
-                        throw Utils.error("There is an untracked file in the way; "
-                                + "delete it, or add and commit it first.");
-                    }
+    /** Packs every object but those in GARBAGE, storing the versions of
+     *  each file as deltas against one another, and compacts the
+     *  CommitGraph. */
+    static void repack(Set<String> garbage) {
+        ArrayList<Commit> commits = new ArrayList<>();
+        for (String commitID : COMMIT.list()) {
+            commits.add(readCommit(commitID));
+        }
+        commits.sort((a, b) -> b.getTimestamp().compareTo(a.getTimestamp()));
+
+        LinkedHashMap<String, List<String>> histories = new LinkedHashMap<>();
+        HashSet<String> seen = new HashSet<>();
+        for (Commit commit : commits) {
+            for (Map.Entry<String, String> entry : commit.getTrackFiles().entrySet()) {
+                if (seen.add(entry.getValue())) {
+                    histories.computeIfAbsent(entry.getKey(), k -> new ArrayList<>())
+                            .add(entry.getValue());
                 }
             }
         }
+        Pack.repack(new ArrayList<>(histories.values()), garbage);
+        CommitGraph.compact();
     }
 
-    private static Commit findSplit(Commit head, Commit branch) {
-        HashMap<String, String> headParents = new HashMap<>();
-        HashMap<String, String> branchParents = new HashMap<>();
-        String headId = sha1(serialize(head));
-        String branchId = sha1(serialize(branch));
-        headParents.put(headId, headId);
-        branchParents.put(branchId, branchId);
-        Commit split;
-
-        while (true) {
-            if (head.getParent1() != null) {
-                head = readObject(join(COMMIT, head.getParent1()), Commit.class);
-                headId = sha1(serialize(head));
-                headParents.put(headId, headId);
+    public static void config(String key, String value) {
+        if (value == null) {
+            String current = Config.get(key);
+            if (current != null) {
+                System.out.println(current);
             }
+            return;
+        }
+        if (key.equals(ObjectStore.LEVEL_KEY) && !value.matches("-1|[0-9]")) {
+            throw Utils.error("Compression level must be between -1 and 9.");
+        }
+        if (key.equals(Materializer.WORKERS_KEY) && !value.matches("[1-9][0-9]*")) {
+            throw Utils.error("Worker count must be a positive number.");
+        }
+        if ((key.equals(Materializer.REPORT_KEY) || key.equals(Materializer.VERIFY_KEY))
+                && !value.matches("true|false")) {
+            throw Utils.error("%s must be true or false.", key);
+        }
+        if (key.equals(GarbageCollector.GRACE_KEY) && !value.matches("[0-9]{1,9}")) {
+            throw Utils.error("Grace period must be a number of seconds.");
+        }
+        Config.set(key, value);
+    }
 
-            if (branch.getParent1() != null) {
-                branch = readObject(join(COMMIT, branch.getParent1()), Commit.class);
-                branchId = sha1(serialize(branch));
-                branchParents.put(branchId, branchId);
-            }
+    /** Returns the commit with the given full ID. */
+    static Commit readCommit(String id) {
+        Commit commit = Commit.decode(ObjectStore.readCompressed(join(COMMIT, id)));
+        commit.setId(id);
+        return commit;
+    }
 
-            if (headParents.containsKey(branchId)) {
-                split = readObject(join(COMMIT, branchId), Commit.class);
-                break;
-            }
-            if (branchParents.containsKey(headId)) {
-                split = readObject(join(COMMIT, headId), Commit.class);
-                break;
+    /** Returns the commit with the given full ID, reading no further than
+     *  its message. Its tracked files are loaded if they are asked for. */
+    static Commit readCommitHeader(String id) {
+        File file = join(COMMIT, id);
+        try (InputStream in = new BufferedInputStream(ObjectStore.compressedInput(file), 512)) {
+            in.mark(1);
+            int first = in.read();
+            in.reset();
+            if (first != Commit.MAGIC >>> 24) {
+                return readCommit(id);
             }
+            Commit commit = Commit.readHeader(in);
+            commit.setId(id);
+            return commit;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
         }
-
-        return split;
     }
 
-    private static Commit findSplit2(Commit head, Commit branch) {
-        HashMap<String, String> headParents = new HashMap<>();
-        HashMap<String, String> branchParents = new HashMap<>();
-        ArrayList<String> headRecent = new ArrayList<>();
-        ArrayList<String> branchRecent = new ArrayList<>();
-
-        String headId = sha1(serialize(head));
-        String branchId = sha1(serialize(branch));
+    /** Stores COMMIT, compressed, and returns its id. The file is written
+     *  under .gitlet/tmp and renamed into place. */
+    static String writeCommit(Commit commit) {
+        byte[] bytes = commit.encode();
+        String id = sha1(bytes);
+        storeCommit(id, bytes);
+        commit.setId(id);
+        CommitGraph.add(commit);
+        MessageIndex.add(commit);
+        return id;
+    }
 
-        headParents.put(headId, headId);
-        branchParents.put(branchId, branchId);
-        headRecent.add(headId);
-        branchRecent.add(branchId);
+    /** Stores BYTES, the encoding of the commit ID, compressed, writing
+     *  them under .gitlet/tmp and renaming them into place. */
+    private static void storeCommit(String id, byte[] bytes) {
+        File file = join(COMMIT, id);
+        File temp = join(GITLET_DIR, "tmp", "commit-" + id);
+        temp.getParentFile().mkdirs();
+        ObjectStore.writeCompressed(temp, bytes);
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Journal.stored(file);
+    }
 
-        Commit split;
+    /** Returns the branch HEAD names, or null if HEAD is detached. */
+    static String currentBranch() {
+        String contents = readHead();
+        return contents.startsWith(REF_PREFIX) ? contents.substring(REF_PREFIX.length()) : null;
+    }
 
-        while (true) {
-            int i = headRecent.size();
-            for (String vals : headRecent.toArray(new String[0])) {
-                if (branchParents.containsKey(vals)) {
-                    split = readObject(join(COMMIT, vals), Commit.class);
-                    return split;
-                }
+    /** Returns the id of the commit HEAD refers to. */
+    static String headId() {
+        String branch = currentBranch();
+        if (branch == null) {
+            return readHead();
+        }
+        return Refs.get(branch);
+    }
 
-                head = readObject(join(COMMIT, vals), Commit.class);
-                if (head.getParent1() != null) {
-                    headId = head.getParent1();
-                    headParents.put(headId, headId);
-                    headRecent.add(headId);
-                }
-                if (head.getParent2() != null) {
-                    headId = head.getParent2();
-                    headParents.put(headId, headId);
-                    headRecent.add(headId);
-                }
-            }
-            for (int j = 0; j < i; j++) {
-                headRecent.remove(j);
-            }
+    /** Returns the ids of the commits the branches and HEAD refer to. */
+    static Set<String> refTargets() {
+        Set<String> ids = new HashSet<>(Refs.all().values());
+        ids.add(headId());
+        return ids;
+    }
 
-            i = branchRecent.size();
-            for (String vals : branchRecent.toArray(new String[0])) {
-                if (headParents.containsKey(vals)) {
-                    split = readObject(join(COMMIT, vals), Commit.class);
-                    return split;
-                }
+    /** Returns the commit HEAD refers to. */
+    static Commit headCommit() {
+        return readCommit(headId());
+    }
 
-                branch = readObject(join(COMMIT, vals), Commit.class);
-                if (branch.getParent1() != null) {
-                    branchId = branch.getParent1();
-                    branchParents.put(branchId, branchId);
-                    branchRecent.add(branchId);
-                }
-                if (branch.getParent2() != null) {
-                    branchId = branch.getParent2();
-                    branchParents.put(branchId, branchId);
-                    branchRecent.add(branchId);
-                }
-            }
-            for (int j = 0; j < i; j++) {
-                branchRecent.remove(j);
-            }
+    /** Reads HEAD and the branch it names, both as of the same moment, by
+     *  a Journal snapshot. A command resolves refs only here, once, and
+     *  otherwise reads only objects and commits, which never change; so a
+     *  command that only reads sees one state of the repository throughout,
+     *  however many writers run beside it. */
+    private static void readRefs() {
+        String[] read = new String[2];
+        Journal.snapshot(() -> {
+            read[0] = readContentsAsString(HEAD).trim();
+            read[1] = read[0].startsWith(REF_PREFIX)
+                    ? Refs.lookup(read[0].substring(REF_PREFIX.length())) : null;
+        }, HEAD, Refs.HEADS, Refs.PACKED);
+        head = read[0];
+        if (head.startsWith(REF_PREFIX)) {
+            Refs.remember(head.substring(REF_PREFIX.length()), read[1]);
         }
+    }
 
+    /** Returns the contents of HEAD, read from its file on first use. */
+    private static String readHead() {
+        if (head == null) {
+            readRefs();
+        }
+        return head;
     }
 
-    private static int findCase(HashMap<String, String> splitTrack, HashMap<String,
-            String> headTrack, HashMap<String, String> branchTrack, String fileName) {
+    /** Sets HEAD to VALUE. */
+    private static void writeHead(String value) {
+        head = value;
+        Batch.write(HEAD, () -> Journal.write(HEAD,
+                (value + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
 
-        boolean splitExists = splitTrack.containsKey(fileName);
-        boolean headExists = headTrack.containsKey(fileName);
-        boolean branchExists = branchTrack.containsKey(fileName);
-        boolean headChanged = true;
-        boolean branchChanged = true;
+    /** Points HEAD at the branch NAME. */
+    private static void setHead(String name) {
+        writeHead(REF_PREFIX + name);
+    }
 
-        String splitId;
-        String headId;
-        String branchId;
+    /** Moves the current branch, or a detached HEAD, to the commit ID. */
+    private static void advanceHead(String id) {
+        String branch = currentBranch();
+        if (branch == null) {
+            writeHead(id);
+            return;
+        }
+        Refs.set(branch, id);
+    }
 
-        if (splitExists) {
-            splitId = splitTrack.get(fileName);
-            headId = headTrack.get(fileName);
-            branchId = branchTrack.get(fileName);
+    /** Rewrites every commit still stored with Java serialization, or in
+     *  an older binary version, in the current format, storing the trees of
+     *  their files. Commits keep the id they were created with, so branches
+     *  and parent links stay valid. Each is replaced by a temporary file
+     *  renamed over it, and the rewrites are committed to the Journal before
+     *  the format is recorded. Runs once per repository. */
+    static void migrateLegacyCommits() {
+        String version = Integer.toString(Commit.VERSION);
+        if (version.equals(Config.get(COMMIT_FORMAT_KEY))) {
+            return;
+        }
+        for (String commitID : COMMIT.list()) {
+            byte[] bytes = ObjectStore.readCompressed(join(COMMIT, commitID));
+            if ((bytes[0] & 0xff) == 0xac || (bytes[4] & 0xff) < Commit.VERSION) {
+                storeCommit(commitID, Commit.decode(bytes).encode());
+            }
+        }
+        Journal.commit();
+        Config.set(COMMIT_FORMAT_KEY, version);
+    }
 
-            headChanged = !splitId.equals(headId);
-            branchChanged = !splitId.equals(branchId);
+    /** Converts a repository whose HEAD holds a whole serialized commit and
+     *  whose branch map records the current branch under "currHead" to a
+     *  HEAD that names the current branch. Refs.migrate then drops the
+     *  "currHead" entry along with the rest of the map. */
+    @SuppressWarnings("unchecked")
+    static void migrateLegacyHead() {
+        byte[] bytes = readContents(HEAD);
+        if (bytes.length < 2 || (bytes[0] & 0xff) != 0xac || (bytes[1] & 0xff) != 0xed) {
+            return;
+        }
+        setHead(((HashMap<String, String>) readObject(BRANCH, HashMap.class)).get("currHead"));
+    }
 
-            if (!headChanged && !branchExists) {
-                //System.out.println(6);
-                return -1; //6
-            }
-            if (!branchChanged && !headExists) {
-                //System.out.println(7);
-                return -1; //7
-            }
+    /** Returns the id of the commit NAME refers to: a branch or a full or
+     *  abbreviated commit id. */
+    private static String resolveCommit(String name) {
+        String id = Refs.get(name);
+        return id != null ? id : fullId(name);
+    }
 
-            if (headChanged && !branchChanged) {
-                //System.out.println(2);
-                return 2;
-            }
-            if (branchChanged && !headChanged) {
-                //System.out.println(1);
-                return 1;
-            }
+    /** Returns the full id of the commit whose id is or starts with ID,
+     *  found by binary search in the sorted ids of the CommitGraph. */
+    private static String fullId(String id) {
+        List<String> matches = CommitGraph.get().withPrefix(id, 2);
+        if (matches.isEmpty()) {
+            throw Utils.error("No commit with that id exists.");
+        }
+        if (matches.size() > 1) {
+            throw Utils.error("Ambiguous commit id.");
+        }
+        return matches.get(0);
+    }
 
-            if (headChanged && branchChanged) {
-                if ((headId == null && branchId == null) || headId.equals(branchId)) {
-                    //System.out.println("3a");
-                    return 2; //3a
+    /** Makes the working directory match the commit TARGET, coming from
+     *  the commit CURRENT. The paths that differ are found by comparing
+     *  their trees, skipping subtrees the two share: files tracked by
+     *  CURRENT alone are deleted and changed files are written, so the cost
+     *  is that of the difference, not of the whole tree. With
+     *  checkout.verify set to true, every other file of TARGET is checked
+     *  too, and rewritten if its working copy no longer matches. Clears the
+     *  staging area. */
+    private static void checkoutCommit(Commit current, Commit target) {
+        Set<String> changed = new HashSet<>();
+        HashMap<String, String> created = new HashMap<>();
+        List<String> deletes = new ArrayList<>();
+        HashMap<String, String> writes = new HashMap<>();
+        TreeDiff.diff(current.getTree(), target.getTree(), (path, from, to) -> {
+            changed.add(path);
+            if (to == null) {
+                deletes.add(path);
+            } else {
+                writes.put(path, to);
+                if (from == null) {
+                    created.put(path, to);
                 }
-                //System.out.println("3b");
-                return 3; //3b
             }
-
-        } else {
-            if (headExists && !branchExists) {
-                //System.out.println(4);
-                return 2; //4
-            }
-            if (branchExists && !headExists) {
-                //System.out.println(5);
-                return 1; //5
+        });
+        testUntracked(created, deletes);
+
+        if ("true".equals(Config.get(Materializer.VERIFY_KEY))) {
+            for (Map.Entry<String, String> entry : target.getTrackFiles().entrySet()) {
+                String name = entry.getKey();
+                if (!changed.contains(name) && !matchesWorkingFile(name, entry.getValue())) {
+                    writes.put(name, entry.getValue());
+                }
             }
         }
+        Materializer.apply(writes, deletes);
 
-        System.out.println("oops");
-        return 0;
+        Stage.clear();
+        Stage.save();
+        StatCache.save();
     }
 
-    private static HashMap<String, String>
-        mergeHelper(HashMap<String, String> branchTrack,
-                HashMap<String, String> headTrack, HashMap<String, String> splitTrack) {
-
-        HashMap<String, String> listOfFiles = new HashMap<>();
+    /** True iff the working file NAME exists and holds the blob ID. */
+    private static boolean matchesWorkingFile(String name, String id) {
+        File file = join(CWD, name);
+        return file.isFile() && StatCache.hash(name, file).equals(id);
+    }
 
-        for (String branchKey : branchTrack.keySet()) {
-            for (String headKey : headTrack.keySet()) {
-                listOfFiles.put(branchKey, branchKey);
-                listOfFiles.put(headKey, headKey);
-                if (!splitTrack.isEmpty()) {
-                    for (String splitKey : splitTrack.keySet()) {
-                        listOfFiles.put(splitKey, splitKey);
-                    }
-                }
+    /** Fails if an untracked file is in the way of CREATED, the files about
+     *  to be written that the current commit does not track: one that holds
+     *  something other than what CREATED would write over it, or one that
+     *  stands where CREATED needs a directory or a directory where it needs
+     *  a file. Files in DELETES, which the current commit tracks, are about
+     *  to be removed and so are not in the way. */
+    private static void testUntracked(Map<String, String> created,
+                                      Collection<String> deletes) {
+        untrackHash = (HashMap<String, String>) Utils.readObject(UNTRACTED, HashMap.class);
+        Set<String> gone = new HashSet<>(deletes);
+
+        for (Map.Entry<String, String> entry : created.entrySet()) {
+            String name = entry.getKey();
+            File file = join(CWD, name);
+            String blocker;
+            if (file.isFile()) {
+                blocker = StatCache.hash(name, file).equals(entry.getValue()) ? null : name;
+            } else {
+                blocker = Materializer.blocker(name, gone);
+            }
+            if (blocker != null
+                    && !untrackHash.containsKey(Paths.get(blocker).getName(0).toString())) {
+                throw Utils.error(Materializer.IN_THE_WAY);
             }
         }
+        StatCache.save();
+    }
+
+    /** Merges OURS and THEIRS, the blobs of the file NAME changed from BASE
+     *  on either side, line by line, adding NAME to CONFLICTS if they
+     *  overlap. Returns the id of the stored result. */
+    private static String mergeFile(String name, String base, String ours, String theirs,
+                                    List<String> conflicts) {
+        LineMerge.Result merged = LineMerge.merge(base == null ? null : ObjectStore.buffer(base),
+                ours == null ? null : ObjectStore.buffer(ours),
+                theirs == null ? null : ObjectStore.buffer(theirs));
+        if (merged.conflict()) {
+            conflicts.add(name);
+        }
+        String id = sha1(name, merged.contents());
+        ObjectStore.write(id, merged.contents());
+        return id;
+    }
 
-        return listOfFiles;
+    /** Prints the files that differ between the commits FIRST and SECOND,
+     *  each a branch name or commit id, as they are found: A, M or D, a
+     *  tab, and the path. */
+    public static void diff(String first, String second) {
+        Commit from = readCommitHeader(resolveCommit(first));
+        Commit to = readCommitHeader(resolveCommit(second));
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16));
+        TreeDiff.diff(from.getTree(), to.getTree(), (path, oldBlob, newBlob) -> {
+            out.print(oldBlob == null ? "A" : newBlob == null ? "D" : "M");
+            out.print('\t');
+            out.print(path);
+            out.print('\n');
+        });
+        out.flush();
     }
 }
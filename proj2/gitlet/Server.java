@@ -0,0 +1,266 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** gitlet serve: runs commands sent by Client over the Unix-domain socket
+ *  .gitlet/server.sock in one long-lived JVM, so that they skip JVM startup
+ *  and find the commit graph, pack indexes, stat cache, staging area and
+ *  config already loaded.
+ *
+ *  Commands run one at a time, exactly as Main runs them, with their output
+ *  and exit status sent back. Before each command, any of those caches
+ *  whose file changed since the last command, say because a one-shot
+ *  command ran in between, is dropped; after a command that failed, all of
+ *  them are, since it may have changed them in memory without saving.
+ *
+ *  Protocol, in DataOutputStream encoding: a request is the number of
+ *  arguments as an int, followed by each as a UTF string. The response is
+ *  a series of frames, each a channel byte and an int. For STDOUT and
+ *  STDERR, the int is a length and that many bytes of output follow; for
+ *  EXIT it is the exit status, and ends the response. A connection may
+ *  carry any number of requests.
+ *
+ *  @author Jae Won Kim
+ */
+class Server {
+
+    /** The socket the server listens on. */
+    static final File SOCKET = join(Repository.GITLET_DIR, "server.sock");
+
+    /** Frame channels. */
+    static final int EXIT = 0;
+    static final int STDOUT = 1;
+    static final int STDERR = 2;
+
+    /** Size of the buffer output is framed from. */
+    private static final int FRAME_SIZE = 64 * 1024;
+
+    /** The file each cache is read from, and how to drop it. */
+    private static final Map<File, Runnable> CACHES = new LinkedHashMap<>();
+
+    static {
+        CACHES.put(CommitGraph.GRAPH, CommitGraph::invalidate);
+        CACHES.put(CommitGraph.CHAIN, CommitGraph::invalidate);
+        CACHES.put(Config.CONFIG, Config::invalidate);
+        CACHES.put(Pack.PACK_DIR, Pack::invalidate);
+        CACHES.put(Stage.STAGE, Stage::invalidate);
+        CACHES.put(StatCache.INDEX, StatCache::invalidate);
+    }
+
+    /** What each file in CACHES looked like after the last command. */
+    private static final Map<File, String> STAMPS = new HashMap<>();
+
+    /** Serves commands until the process is killed. */
+    static void serve() {
+        if (isRunning()) {
+            throw error("A server is already running.");
+        }
+        SOCKET.delete();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET.toPath()));
+            Runtime.getRuntime().addShutdownHook(new Thread(SOCKET::delete));
+            remember();
+            while (true) {
+                try (SocketChannel channel = server.accept()) {
+                    handle(channel);
+                } catch (IOException e) {
+                    /* The client went away; wait for the next one. */
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** True iff a server is listening on SOCKET. */
+    private static boolean isRunning() {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(SOCKET.toPath())).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Answers the requests on CHANNEL until the client closes it. */
+    private static void handle(SocketChannel channel) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel)));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+        while (true) {
+            String[] args;
+            try {
+                args = new String[in.readInt()];
+            } catch (EOFException e) {
+                return;
+            }
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            int status = run(args, out);
+            out.writeByte(EXIT);
+            out.writeInt(status);
+            out.flush();
+        }
+    }
+
+    /** Runs the command ARGS as Main would, sending its output to OUT, and
+     *  returns its exit status. A command that writes takes the WriteLock
+     *  before the caches are checked, so that no other writer can change
+     *  their files in between. */
+    private static int run(String[] args, DataOutputStream out) {
+        if (!Main.writes(args)) {
+            return execute(args, out);
+        }
+        WriteLock.acquire();
+        try {
+            return execute(args, out);
+        } finally {
+            WriteLock.release();
+        }
+    }
+
+    /** Runs the command ARGS, sending its output to OUT, and returns its
+     *  exit status. */
+    private static int execute(String[] args, DataOutputStream out) {
+        refresh();
+        Frames frames = new Frames(out);
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        System.setOut(new PrintStream(frames.channel(STDOUT)));
+        System.setErr(new PrintStream(frames.channel(STDERR)));
+        int status = 0;
+        boolean failed = true;
+        try {
+            if (args.length > 0 && args[0].equals("serve")) {
+                throw error("A server is already running.");
+            } else if (args.length == 1 && args[0].equals("batch")) {
+                throw error("A served batch must be read from a file.");
+            }
+            Main.run(args);
+            failed = false;
+        } catch (GitletException e) {
+            System.out.println(e.getMessage());
+        } catch (Throwable e) {
+            System.err.print("Exception in thread \"main\" ");
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+        frames.flush();
+        if (failed) {
+            for (Runnable drop : CACHES.values()) {
+                drop.run();
+            }
+        }
+        remember();
+        return status;
+    }
+
+    /** Drops each cache whose file changed since remember was last called.
+     *  HEAD, the Refs and the untracked map are always dropped, as they are
+     *  cheap to read again. */
+    private static void refresh() {
+        for (Map.Entry<File, Runnable> cache : CACHES.entrySet()) {
+            if (!Journal.stamp(cache.getKey()).equals(STAMPS.get(cache.getKey()))) {
+                cache.getValue().run();
+            }
+        }
+        Repository.invalidate();
+    }
+
+    /** Records what each file in CACHES looks like now. */
+    private static void remember() {
+        for (File file : CACHES.keySet()) {
+            STAMPS.put(file, Journal.stamp(file));
+        }
+    }
+
+    /** The output of one command, cut into frames. Output to both channels
+     *  goes through one buffer, which is sent whenever it fills or the
+     *  channel changes, so the client sees it in the order it was written. */
+    private static class Frames {
+        /** Where frames are written. */
+        private final DataOutputStream out;
+        /** Output not yet sent, all to CHANNEL. */
+        private final byte[] buffer = new byte[FRAME_SIZE];
+        private int length;
+        private int channel = STDOUT;
+
+        Frames(DataOutputStream out) {
+            this.out = out;
+        }
+
+        /** Returns a stream that writes to the channel TARGET. */
+        OutputStream channel(int target) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    Frames.this.write(target, b, off, len);
+                }
+            };
+        }
+
+        /** Adds B[OFF..OFF+LEN) to the output of TARGET. */
+        private synchronized void write(int target, byte[] b, int off, int len) {
+            if (target != channel) {
+                flush();
+                channel = target;
+            }
+            while (len > 0) {
+                if (length == buffer.length) {
+                    flush();
+                }
+                int n = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /** Sends the buffered output as a frame. A client that has gone away
+         *  loses the rest of the output, but the command still finishes. */
+        synchronized void flush() {
+            if (length == 0) {
+                return;
+            }
+            try {
+                out.writeByte(channel);
+                out.writeInt(length);
+                out.write(buffer, 0, length);
+            } catch (IOException e) {
+                /* Dropped; handle notices when it next reads. */
+            }
+            length = 0;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** The staging area, kept in .gitlet/stage: the blob id of each file staged
+ *  for addition, whose blob is already in the ObjectStore, and the names of
+ *  the files staged for removal. It is read once per command and written
+ *  back by save.
+ *
+ *  @author Jae Won Kim
+ */
+class Stage {
+
+    /** The staging-area file. */
+    static final File STAGE = join(Repository.GITLET_DIR, "stage");
+
+    /** Magic number and format version of STAGE. */
+    private static final int MAGIC = 0x47535447;
+    private static final int VERSION = 1;
+
+    /** Blob ids of the files staged for addition, by name. */
+    private static TreeMap<String, String> added;
+    /** Names of the files staged for removal. */
+    private static TreeSet<String> removed;
+
+    /** Returns the files staged for addition, by name, in order. */
+    static Map<String, String> added() {
+        load();
+        return added;
+    }
+
+    /** Returns the files staged for removal, in order. */
+    static Set<String> removed() {
+        load();
+        return removed;
+    }
+
+    /** True iff nothing is staged. */
+    static boolean isEmpty() {
+        load();
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    /** Stages the blob ID for addition as NAME. */
+    static void add(String name, String id) {
+        load();
+        removed.remove(name);
+        added.put(name, id);
+    }
+
+    /** Stages NAME for removal. */
+    static void remove(String name) {
+        load();
+        added.remove(name);
+        removed.add(name);
+    }
+
+    /** Unstages NAME. */
+    static void unstage(String name) {
+        load();
+        added.remove(name);
+        removed.remove(name);
+    }
+
+    /** Unstages everything. */
+    static void clear() {
+        load();
+        added.clear();
+        removed.clear();
+    }
+
+    /** Drops the loaded staging area, so that it is read again on next use. */
+    static void invalidate() {
+        added = null;
+        removed = null;
+    }
+
+    /** Writes the staging area to STAGE, at once or at the next Batch
+     *  checkpoint. */
+    static void save() {
+        load();
+        Batch.write(STAGE, Stage::write);
+    }
+
+    /** Writes the staging area to STAGE when the Journal commits. */
+    private static void write() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(added.size());
+            for (Map.Entry<String, String> entry : added.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.write(ObjectStore.toBinary(entry.getValue()));
+            }
+            out.writeInt(removed.size());
+            for (String name : removed) {
+                out.writeUTF(name);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        Journal.write(STAGE, bytes.toByteArray());
+    }
+
+    /** Reads STAGE, if it has not been read yet. */
+    private static void load() {
+        if (added != null) {
+            return;
+        }
+        added = new TreeMap<>();
+        removed = new TreeSet<>();
+        if (!STAGE.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(STAGE.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw error("Unreadable staging area.");
+            }
+            byte[] id = new byte[UID_LENGTH / 2];
+            for (int count = in.readInt(); count > 0; count--) {
+                String name = in.readUTF();
+                in.readFully(id);
+                added.put(name, ObjectStore.toHex(id));
+            }
+            for (int count = in.readInt(); count > 0; count--) {
+                removed.add(in.readUTF());
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Moves a staging area still kept as the directories Repository.STAGING,
+     *  holding copies of the staged files, and Repository.REMOVE, holding an
+     *  empty directory per removed file, into STAGE. The directories are
+     *  deleted when the Journal commits, with STAGE written. */
+    static void migrateLegacy() {
+        if (!Repository.STAGING.isDirectory() && !Repository.REMOVE.isDirectory()) {
+            return;
+        }
+        load();
+        File[] staged = Repository.STAGING.listFiles();
+        if (staged != null) {
+            for (File file : staged) {
+                added.put(file.getName(), ObjectStore.writeFile(file.getName(), file));
+            }
+        }
+        String[] gone = Repository.REMOVE.list();
+        if (gone != null) {
+            for (String name : gone) {
+                removed.add(name);
+            }
+        }
+        save();
+        for (File dir : new File[] {Repository.STAGING, Repository.REMOVE}) {
+            File[] children = dir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    Journal.delete(child);
+                }
+            }
+            Journal.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/** Cache of the blob ids of files in the working directory, kept in
+ *  .gitlet/index. For each path it records the size, modification time and
+ *  inode the file had when it was last hashed; while all three still match,
+ *  the file is taken to be unchanged and is not read again.
+ *
+ *  A file modified in the same clock tick as the index was written could
+ *  keep its size and time, so, as in git, an entry whose time is not
+ *  strictly older than the index file itself is "racy" and is hashed anyway.
+ *
+ *  @author Jae Won Kim
+ */
+class StatCache {
+
+    /** The index file. */
+    static final File INDEX = join(Repository.GITLET_DIR, "index");
+
+    /** Magic number and format version of INDEX. */
+    private static final int MAGIC = 0x47494458;
+    private static final int VERSION = 1;
+
+    /** What is known about one file. */
+    private static class Entry {
+        /** Size in bytes, modification time in nanoseconds and inode. */
+        private long size;
+        private long mtime;
+        private long inode;
+        /** Blob id of the contents. */
+        private String id;
+    }
+
+    /** Entries by path relative to the working directory, loaded on first use. */
+    private static Map<String, Entry> entries;
+    /** Modification time of INDEX when it was loaded, in nanoseconds. */
+    private static long indexTime;
+    /** True iff ENTRIES differs from INDEX. */
+    private static boolean dirty;
+
+    /** Returns the blob id of the file NAME whose contents are in FILE,
+     *  hashing FILE only if it changed since it was last seen. */
+    static String hash(String name, File file) {
+        load();
+        String key = key(file);
+        BasicFileAttributes attrs = attributes(file);
+        Entry entry = entries.get(key);
+        if (entry != null && matches(entry, file, attrs) && entry.mtime < indexTime) {
+            return entry.id;
+        }
+        String id = ObjectStore.hash(name, file);
+        record(key, file, attrs, id);
+        return id;
+    }
+
+    /** Returns the blob id of FILE, whose attributes are ATTRS, if the cache
+     *  still knows it, or else null. */
+    static String peek(File file, BasicFileAttributes attrs) {
+        load();
+        Entry entry = entries.get(key(file));
+        if (entry != null && matches(entry, file, attrs) && entry.mtime < indexTime) {
+            return entry.id;
+        }
+        return null;
+    }
+
+    /** Records that FILE, which had the attributes ATTRS, holds the blob ID. */
+    static void record(File file, BasicFileAttributes attrs, String id) {
+        load();
+        record(key(file), file, attrs, id);
+    }
+
+    /** Records that FILE, just written, holds the blob ID. */
+    static void record(File file, String id) {
+        load();
+        record(key(file), file, attributes(file), id);
+    }
+
+    /** Forgets FILE. */
+    static void forget(File file) {
+        load();
+        if (entries.remove(key(file)) != null) {
+            dirty = true;
+        }
+    }
+
+    /** Drops the loaded entries, so that INDEX is read again on next use. */
+    static void invalidate() {
+        entries = null;
+        dirty = false;
+    }
+
+    /** Writes the cache to INDEX if it changed, at once or at the next
+     *  Batch checkpoint. */
+    static void save() {
+        if (dirty) {
+            Batch.write(INDEX, StatCache::write);
+        }
+    }
+
+    /** Writes the cache to INDEX now, if it still differs. Commands that
+     *  only read save it too, without the WriteLock, so each uses a
+     *  temporary file of its own. */
+    private static void write() {
+        if (!dirty) {
+            return;
+        }
+        File temp;
+        try {
+            temp = File.createTempFile("index", ".tmp", Repository.GITLET_DIR);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.inode);
+                out.write(ObjectStore.toBinary(entry.id));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), INDEX.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        indexTime = attributes(INDEX).lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        dirty = false;
+    }
+
+    /** Reads INDEX, if it has not been read yet. A missing or unreadable
+     *  index is treated as empty. */
+    private static void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new HashMap<>();
+        if (!INDEX.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(INDEX.toPath())))) {
+            indexTime = Files.getLastModifiedTime(INDEX.toPath()).to(TimeUnit.NANOSECONDS);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            byte[] id = new byte[UID_LENGTH / 2];
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                Entry entry = new Entry();
+                entry.size = in.readLong();
+                entry.mtime = in.readLong();
+                entry.inode = in.readLong();
+                in.readFully(id);
+                entry.id = ObjectStore.toHex(id);
+                entries.put(key, entry);
+            }
+        } catch (IOException e) {
+            entries.clear();
+        }
+    }
+
+    /** Records that FILE, with attributes ATTRS, holds ID under KEY. */
+    private static void record(String key, File file, BasicFileAttributes attrs, String id) {
+        Entry entry = new Entry();
+        entry.size = attrs.size();
+        entry.mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        entry.inode = inode(file, attrs);
+        entry.id = id;
+        entries.put(key, entry);
+        dirty = true;
+    }
+
+    /** True iff ENTRY still describes FILE, whose attributes are ATTRS. */
+    private static boolean matches(Entry entry, File file, BasicFileAttributes attrs) {
+        return entry.size == attrs.size()
+                && entry.mtime == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                && entry.inode == inode(file, attrs);
+    }
+
+    /** Returns the attributes of FILE. */
+    static BasicFileAttributes attributes(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Returns the inode of FILE, or a stand-in on systems without them. */
+    private static long inode(File file, BasicFileAttributes attrs) {
+        try {
+            return ((Number) Files.getAttribute(file.toPath(), "unix:ino")).longValue();
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            Object fileKey = attrs.fileKey();
+            return fileKey == null ? 0 : fileKey.hashCode();
+        }
+    }
+
+    /** Returns the path of FILE relative to the working directory. */
+    private static String key(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        return Repository.CWD.toPath().toAbsolutePath().normalize().relativize(path).toString();
+    }
+}
@@ -0,0 +1,185 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Tree objects: one per directory, listing its files and subdirectories
+ *  by name, each with the id of its blob or of its own tree. A tree's id is
+ *  the SHA-1 of its encoding, so a directory whose contents did not change
+ *  has the same tree in every commit, is stored once, and can be skipped
+ *  as a whole by comparing ids. Trees are kept in the ObjectStore.
+ *
+ *  Paths are relative to the working directory and separated by '/'.
+ *
+ *  @author Jae Won Kim
+ */
+class Tree {
+
+    /** Magic number and version of the encoding. */
+    private static final int MAGIC = 0x47545245;
+    private static final int VERSION = 1;
+
+    /** Entry types. */
+    static final int BLOB = 1;
+    static final int TREE = 2;
+
+    /** One entry of a tree: a blob or a subtree. */
+    static class Entry {
+        /** BLOB or TREE. */
+        private final int type;
+        /** Id of the blob or tree. */
+        private final String id;
+
+        Entry(int type, String id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        int type() {
+            return type;
+        }
+
+        String id() {
+            return id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && ((Entry) o).type == type && ((Entry) o).id.equals(id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode() * 31 + type;
+        }
+    }
+
+    /** Returns the entries of the tree ID, by name. */
+    static TreeMap<String, Entry> read(String id) {
+        TreeMap<String, Entry> entries = new TreeMap<>();
+        byte[] data = ObjectStore.read(id);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() > VERSION) {
+                throw error("Object %s is not a tree.", id);
+            }
+            byte[] binary = new byte[UID_LENGTH / 2];
+            for (int count = in.readInt(); count > 0; count--) {
+                int type = in.readUnsignedByte();
+                String name = in.readUTF();
+                in.readFully(binary);
+                entries.put(name, new Entry(type, ObjectStore.toHex(binary)));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return entries;
+    }
+
+    /** Stores the tree with ENTRIES, unless it is already stored, and
+     *  returns its id. */
+    static String write(TreeMap<String, Entry> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeByte(entry.getValue().type);
+                out.writeUTF(entry.getKey());
+                out.write(ObjectStore.toBinary(entry.getValue().id));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        byte[] data = bytes.toByteArray();
+        String id = sha1(data);
+        ObjectStore.write(id, data);
+        return id;
+    }
+
+    /** Stores the trees of FILES, a map from path to blob id, and returns
+     *  the id of the root. */
+    static String build(Map<String, String> files) {
+        TreeMap<String, Entry> entries = new TreeMap<>();
+        TreeMap<String, Map<String, String>> subdirs = new TreeMap<>();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            String path = file.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                entries.put(path, new Entry(BLOB, file.getValue()));
+            } else {
+                subdirs.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                        .put(path.substring(slash + 1), file.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> subdir : subdirs.entrySet()) {
+            entries.put(subdir.getKey(), new Entry(TREE, build(subdir.getValue())));
+        }
+        return write(entries);
+    }
+
+    /** Returns the id of the tree ROOT with CHANGES applied: each path maps
+     *  to its new blob id, or to null if it is removed. Only the trees on
+     *  the way to a changed path are rewritten; all others are shared. */
+    static String update(String root, Map<String, String> changes) {
+        String result = updateDir(root, changes);
+        return result == null ? write(new TreeMap<>()) : result;
+    }
+
+    /** As for update, but returns null if the result is empty. */
+    private static String updateDir(String root, Map<String, String> changes) {
+        TreeMap<String, Entry> entries = root == null ? new TreeMap<>() : read(root);
+        TreeMap<String, Map<String, String>> subdirs = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash >= 0) {
+                subdirs.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            } else if (change.getValue() == null) {
+                entries.remove(path);
+            } else {
+                entries.put(path, new Entry(BLOB, change.getValue()));
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> subdir : subdirs.entrySet()) {
+            Entry old = entries.get(subdir.getKey());
+            String sub = updateDir(old != null && old.type == TREE ? old.id : null,
+                    subdir.getValue());
+            if (sub == null) {
+                entries.remove(subdir.getKey());
+            } else {
+                entries.put(subdir.getKey(), new Entry(TREE, sub));
+            }
+        }
+        return entries.isEmpty() ? null : write(entries);
+    }
+
+    /** Returns every file under the tree ID, by path. */
+    static HashMap<String, String> flatten(String id) {
+        HashMap<String, String> files = new HashMap<>();
+        flatten(id, "", files);
+        return files;
+    }
+
+    /** Adds each file under the tree ID to FILES, its path prefixed by
+     *  PREFIX. */
+    private static void flatten(String id, String prefix, Map<String, String> files) {
+        for (Map.Entry<String, Entry> entry : read(id).entrySet()) {
+            String path = prefix + entry.getKey();
+            if (entry.getValue().type == TREE) {
+                flatten(entry.getValue().id, path + "/", files);
+            } else {
+                files.put(path, entry.getValue().id);
+            }
+        }
+    }
+}
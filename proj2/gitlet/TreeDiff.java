@@ -0,0 +1,167 @@
+package gitlet;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/** Compares two or three Trees in a single pass. The entries of each
+ *  directory are already sorted by name, so the walk advances through
+ *  them side by side, like the merge step of merge sort, and descends only
+ *  into subdirectories whose tree ids differ. Its cost is linear in the
+ *  number of entries it looks at, and shared subtrees cost nothing.
+ *
+ *  Results are passed to a visitor as they are found, in path order. A
+ *  missing file is given as a null blob id.
+ *
+ *  @author Jae Won Kim
+ */
+class TreeDiff {
+
+    /** Receives the files that differ between two trees. */
+    interface Visitor {
+        /** Called for the file PATH, which has the blob FROM in the first
+         *  tree and TO in the second. */
+        void visit(String path, String from, String to);
+    }
+
+    /** Receives the files a three-way merge has to look at. */
+    interface MergeVisitor {
+        /** Called for the file PATH, which has the blob BASE in the common
+         *  ancestor, OURS in the current commit and THEIRS in the other. */
+        void visit(String path, String base, String ours, String theirs);
+    }
+
+    /** Visits every file that differs between the trees FROM and TO. */
+    static void diff(String from, String to, Visitor visitor) {
+        walk(from, to, "", visitor);
+    }
+
+    /** Visits every file that THEIRS changed relative to BASE and OURS did
+     *  not change in the same way: files changed on their side only, and
+     *  files changed differently on both. Files only OURS changed are left
+     *  out, since a merge keeps them as they are. */
+    static void merge(String base, String ours, String theirs, MergeVisitor visitor) {
+        walk(base, ours, theirs, "", visitor);
+    }
+
+    /** Two-way walk of the trees A and B, either of which may be null,
+     *  below PREFIX. */
+    private static void walk(String a, String b, String prefix, Visitor visitor) {
+        if (Objects.equals(a, b)) {
+            return;
+        }
+        Iterator<Map.Entry<String, Tree.Entry>> xs = entries(a);
+        Iterator<Map.Entry<String, Tree.Entry>> ys = entries(b);
+        Map.Entry<String, Tree.Entry> x = next(xs);
+        Map.Entry<String, Tree.Entry> y = next(ys);
+        while (x != null || y != null) {
+            String name = min(name(x), name(y));
+            Tree.Entry p = at(x, name);
+            Tree.Entry q = at(y, name);
+            if (p != null) {
+                x = next(xs);
+            }
+            if (q != null) {
+                y = next(ys);
+            }
+            if (Objects.equals(p, q)) {
+                continue;
+            }
+            String path = prefix + name;
+            walk(treeId(p), treeId(q), path + "/", visitor);
+            if (blobId(p) != null || blobId(q) != null) {
+                visitor.visit(path, blobId(p), blobId(q));
+            }
+        }
+    }
+
+    /** Three-way walk of the trees BASE, OURS and THEIRS, any of which may
+     *  be null, below PREFIX. */
+    private static void walk(String base, String ours, String theirs, String prefix,
+                             MergeVisitor visitor) {
+        if (Objects.equals(ours, theirs) || Objects.equals(base, theirs)) {
+            return;
+        }
+        if (Objects.equals(base, ours)) {
+            walk(base, theirs, prefix, (path, from, to) -> visitor.visit(path, from, from, to));
+            return;
+        }
+        Iterator<Map.Entry<String, Tree.Entry>> bs = entries(base);
+        Iterator<Map.Entry<String, Tree.Entry>> os = entries(ours);
+        Iterator<Map.Entry<String, Tree.Entry>> ts = entries(theirs);
+        Map.Entry<String, Tree.Entry> b = next(bs);
+        Map.Entry<String, Tree.Entry> o = next(os);
+        Map.Entry<String, Tree.Entry> t = next(ts);
+        while (b != null || o != null || t != null) {
+            String name = min(name(b), min(name(o), name(t)));
+            Tree.Entry p = at(b, name);
+            Tree.Entry q = at(o, name);
+            Tree.Entry r = at(t, name);
+            if (p != null) {
+                b = next(bs);
+            }
+            if (q != null) {
+                o = next(os);
+            }
+            if (r != null) {
+                t = next(ts);
+            }
+            if (Objects.equals(q, r) || Objects.equals(p, r)) {
+                continue;
+            }
+            String path = prefix + name;
+            walk(treeId(p), treeId(q), treeId(r), path + "/", visitor);
+            String pb = blobId(p);
+            String qb = blobId(q);
+            String rb = blobId(r);
+            if (!Objects.equals(qb, rb) && !Objects.equals(pb, rb)) {
+                visitor.visit(path, pb, qb, rb);
+            }
+        }
+    }
+
+    /** Returns an iterator over the entries of the tree ID, or over none if
+     *  ID is null. */
+    private static Iterator<Map.Entry<String, Tree.Entry>> entries(String id) {
+        if (id == null) {
+            return Collections.emptyIterator();
+        }
+        return Tree.read(id).entrySet().iterator();
+    }
+
+    /** Returns the next entry of IT, or null at its end. */
+    private static Map.Entry<String, Tree.Entry> next(
+            Iterator<Map.Entry<String, Tree.Entry>> it) {
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /** Returns the name of E, or null if E is null. */
+    private static String name(Map.Entry<String, Tree.Entry> e) {
+        return e == null ? null : e.getKey();
+    }
+
+    /** Returns the smaller of the names X and Y, either of which may be
+     *  null, or null if both are. */
+    private static String min(String x, String y) {
+        if (x == null || y == null) {
+            return x == null ? y : x;
+        }
+        return x.compareTo(y) <= 0 ? x : y;
+    }
+
+    /** Returns the entry of E if it is named NAME, otherwise null. */
+    private static Tree.Entry at(Map.Entry<String, Tree.Entry> e, String name) {
+        return e != null && e.getKey().equals(name) ? e.getValue() : null;
+    }
+
+    /** Returns the id of E if it is a tree, otherwise null. */
+    private static String treeId(Tree.Entry e) {
+        return e != null && e.type() == Tree.TREE ? e.id() : null;
+    }
+
+    /** Returns the id of E if it is a blob, otherwise null. */
+    private static String blobId(Tree.Entry e) {
+        return e != null && e.type() == Tree.BLOB ? e.id() : null;
+    }
+}
@@ -0,0 +1,99 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+
+import static gitlet.Utils.*;
+
+/** The repository's writer lock: an exclusive FileChannel lock on
+ *  .gitlet/lock, held by every command that changes the repository for as
+ *  long as it runs, so that two writers never interleave. Commands that
+ *  only read do not wait for it; see Main. The operating system drops the
+ *  lock when its process dies.
+ *
+ *  Holds are counted, so code that already holds the lock may take it
+ *  again.
+ *
+ *  @author Jae Won Kim
+ */
+class WriteLock {
+
+    /** The lock file. */
+    static final File LOCK = join(Repository.GITLET_DIR, "lock");
+
+    /** The open lock file and the lock on it, while held. */
+    private static FileChannel channel;
+    private static FileLock lock;
+    /** Number of unreleased acquires. */
+    private static int holds;
+
+    /** Takes the lock, waiting for any other writer to finish. */
+    static synchronized void acquire() {
+        if (holds == 0) {
+            open();
+            try {
+                lock = channel.lock();
+            } catch (IOException e) {
+                close();
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        holds++;
+    }
+
+    /** Takes the lock if no other writer holds it, and returns whether it
+     *  did. */
+    static synchronized boolean tryAcquire() {
+        if (holds == 0) {
+            open();
+            try {
+                lock = channel.tryLock();
+            } catch (IOException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                close();
+                return false;
+            }
+        }
+        holds++;
+        return true;
+    }
+
+    /** Gives up one hold on the lock, releasing it after the last. */
+    static synchronized void release() {
+        if (holds == 0 || --holds > 0) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            /* Closing the channel releases it too. */
+        }
+        close();
+    }
+
+    /** Opens the lock file. */
+    private static void open() {
+        try {
+            channel = FileChannel.open(LOCK.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /** Closes the lock file. */
+    private static void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            /* Nothing is left to release. */
+        }
+        channel = null;
+        lock = null;
+    }
+}
@@ -0,0 +1,168 @@
+import sys, re, random, time
+from subprocess import run, Popen, PIPE, DEVNULL
+from os.path import join
+from getopt import getopt, GetoptError
+from shutil import rmtree
+from tempfile import mkdtemp
+from threading import Thread, Event
+
+USAGE = """\
+Usage: python3 stress.py OPTIONS
+   OPTIONS may include
+       --writers=N    Number of concurrent writer processes (default 4).
+       --readers=N    Number of concurrent reader processes (default 4).
+       --rounds=N     Commits and branches made by each writer (default 10).
+       --repackers=N  Number of processes running repack and gc while the
+                      writers run (default 1).
+       --kill         Kill each repack and gc at a random moment.
+       --keep         Keep the test repository.
+
+Runs many gitlet.Main processes on one repository at once. Each writer
+repeatedly changes a file of its own, adds and commits it, and makes a
+branch; each reader runs log, global-log, status and find until the writers
+are done, while each repacker runs repack and gc, with a grace period of
+two seconds, in turn. gitlet.Main is found on CLASSPATH, as with tester.py.
+
+Checks that no update is lost (every branch made and every commit that
+succeeded is there at the end), that no command fails, and that each
+reader's log, read without the write lock, is whole: it ends at the
+initial commit and never loses commits from one run to the next. At the
+end, the file of every commit that succeeded is checked out and compared.
+
+With --kill, no repack or gc is allowed to finish undisturbed, which checks
+that they order their renames and deletes so that a crash at any point
+loses nothing: the final check must still find every file. A killed process
+keeps the page cache, so this cannot check that the right files are synced.
+"""
+
+def gitlet(repo, *args):
+    """Run gitlet.Main with ARGS in REPO; return (status, output)."""
+    result = run(["java", "gitlet.Main"] + list(args), cwd=repo,
+                 stdout=PIPE, stderr=PIPE, universal_newlines=True)
+    return result.returncode, result.stdout + result.stderr
+
+def writer(repo, n, rounds, committed, errors):
+    name = "w{}.txt".format(n)
+    for r in range(rounds):
+        with open(join(repo, name), "w") as f:
+            f.write("writer {} round {}\n".format(n, r))
+        message = "w{} r{}".format(n, r)
+        for args, allowed in ((("add", name), ("",)),
+                              (("commit", message),
+                               ("", "No changes added to the commit.\n")),
+                              (("branch", "b{}-{}".format(n, r)), ("",))):
+            status, out = gitlet(repo, *args)
+            if status != 0 or out not in allowed:
+                errors.append("writer {}: {}: {!r}".format(n, " ".join(args), out))
+            elif args[0] == "commit" and out == "":
+                committed.append(message)
+
+def repacker(repo, n, kill, done, errors):
+    commands = (("repack",), ("gc",))
+    while not done.is_set():
+        for args in commands:
+            if kill:
+                process = Popen(["java", "gitlet.Main"] + list(args), cwd=repo,
+                                stdout=DEVNULL, stderr=DEVNULL)
+                time.sleep(random.uniform(0, 0.5))
+                process.kill()
+                process.wait()
+                continue
+            status, out = gitlet(repo, *args)
+            if status != 0 or not re.fullmatch(r"(Reclaimed .*\n)?", out):
+                errors.append("repacker {}: {}: {!r}".format(n, args[0], out))
+
+def check(repo, committed, errors):
+    """Check out the file of each message in COMMITTED and compare it."""
+    for message in committed:
+        n, r = re.fullmatch(r"w(\d+) r(\d+)", message).groups()
+        name = "w{}.txt".format(n)
+        status, out = gitlet(repo, "find", message)
+        if status != 0 or not re.fullmatch(r"[0-9a-f]{40}\n", out):
+            errors.append("find {}: {!r}".format(message, out))
+            continue
+        status, out = gitlet(repo, "checkout", out.strip(), "--", name)
+        with open(join(repo, name)) as f:
+            contents = f.read()
+        if status != 0 or out != "" \
+           or contents != "writer {} round {}\n".format(n, r):
+            errors.append("checkout {}: {!r} {!r}".format(message, out, contents))
+
+def reader(repo, n, done, errors):
+    seen = 0
+    while not done.is_set():
+        for args in (("log",), ("global-log",), ("status",), ("find", "w0 r0")):
+            status, out = gitlet(repo, *args)
+            if status != 0 or "Exception" in out:
+                errors.append("reader {}: {}: {!r}".format(n, " ".join(args), out))
+            elif args[0] == "log":
+                messages = re.findall(r"^Date: .*\n(.*)$", out, re.M)
+                if not messages or messages[-1] != "initial commit":
+                    errors.append("reader {}: broken log: {!r}".format(n, out))
+                elif len(messages) < seen:
+                    errors.append("reader {}: log lost commits".format(n))
+                else:
+                    seen = len(messages)
+
+def main():
+    try:
+        opts, args = getopt(sys.argv[1:], "",
+                            ["writers=", "readers=", "rounds=", "repackers=",
+                             "kill", "keep"])
+    except GetoptError:
+        print(USAGE, file=sys.stderr)
+        sys.exit(1)
+    opts = dict(opts)
+    writers = int(opts.get("--writers", 4))
+    readers = int(opts.get("--readers", 4))
+    rounds = int(opts.get("--rounds", 10))
+    repackers = int(opts.get("--repackers", 1))
+
+    repo = mkdtemp(prefix="gitlet-stress-")
+    errors, committed = [], []
+    try:
+        gitlet(repo, "init")
+        gitlet(repo, "config", "gc.graceperiod", "2")
+        done = Event()
+        writing = [Thread(target=writer, args=(repo, n, rounds, committed, errors))
+                   for n in range(writers)]
+        reading = [Thread(target=reader, args=(repo, n, done, errors))
+                   for n in range(readers)]
+        reading += [Thread(target=repacker,
+                           args=(repo, n, "--kill" in opts, done, errors))
+                    for n in range(repackers)]
+        for thread in writing + reading:
+            thread.start()
+        for thread in writing:
+            thread.join()
+        done.set()
+        for thread in reading:
+            thread.join()
+
+        _, log = gitlet(repo, "log")
+        _, status = gitlet(repo, "status")
+        logged = set(re.findall(r"^Date: .*\n(.*)$", log, re.M))
+        for message in committed:
+            if message not in logged:
+                errors.append("lost commit: {}".format(message))
+        branches = set(status.split("=== Staged Files ===")[0].split())
+        for n in range(writers):
+            for r in range(rounds):
+                if "b{}-{}".format(n, r) not in branches:
+                    errors.append("lost branch: b{}-{}".format(n, r))
+        check(repo, committed, errors)
+    finally:
+        if "--keep" in opts:
+            print("Repository kept in", repo)
+        else:
+            rmtree(repo, ignore_errors=True)
+
+    for error in errors:
+        print(error)
+    print("{} writers, {} readers, {} commits: {}".format(
+        writers, readers, len(committed),
+        "{} errors.".format(len(errors)) if errors else "OK"))
+    sys.exit(1 if errors else 0)
+
+if __name__ == "__main__":
+    main()